@@ -8,18 +8,18 @@ import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.EnumMap;
-import java.util.LinkedList;
 import java.util.Random;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.TimeUnit;
 
-import neuralNetwork.NNR;
-
 import org.encog.ml.MLRegression;
 import org.encog.ml.data.MLDataSet;
 import org.encog.ml.data.basic.BasicMLDataSet;
@@ -28,6 +28,7 @@ import org.encog.util.simple.EncogUtility;
 
 import pacman.controllers.AController;
 import pacman.controllers.Controller;
+import pacman.controllers.ControllerFactory;
 import pacman.controllers.HumanController;
 import pacman.controllers.KeyBoardInput;
 import pacman.controllers.MyController;
@@ -46,12 +47,20 @@ import pacman.controllers.examples.StarterGhosts;
 import pacman.controllers.examples.StarterPacMan;
 import pacman.game.Game;
 import pacman.game.GameView;
+import pacman.game.util.ReplayReader;
+import pacman.game.util.ReplayWriter;
 import pacman.game.Constants.GHOST;
 import pacman.game.Constants.MOVE;
+import pacman.utils.ExperimentRunner;
 import pacman.utils.FeatureUtils;
+import pacman.utils.LeastSquares;
 import pacman.utils.ParaValueList;
 import pacman.utils.ParaValuePair;
 import pacman.utils.Savelist;
+import pacman.utils.Tournament;
+import pacman.utils.TrainingSet;
+import pacman.utils.TrainingDataPipeline;
+import pacman.utils.TrainingSetWriter;
 import pacman.utils.Utils;
 import pacman.utils.Vector;
 import static pacman.game.Constants.*;
@@ -80,6 +89,7 @@ public class Executor
 //		StateValuePair[] svp = getStateValuePairs(loadReplay("replay"), nnC);
 //		StateValuePair[] esvp = extendStateValuePairs(svp);
 //		writeSVPairs(loadReplay("replay"), nnC);
+//		writeTrainingSet("replay", nnC, "training.bin");
 //		Vector coefficients = getLinearRegressionCoefficients(esvp);
 //		runGame(new MyController(coefficients), new StarterGhosts(), true, 10);
 		MyController ctrl = MyController.createFromFile("linearcontroller");
@@ -91,6 +101,7 @@ public class Executor
 //		// Using Encog method for training
 //		rbfc.getTrainingData("training.csv");
 //		EncogUtility.trainToError(RBFController.getRbfnet(), new BasicMLDataSet(RBFController.INPUT, RBFController.IDEAL), 0.006);
+//		EncogUtility.trainToError(RBFController.getRbfnet(), new TrainingSet("training.bin"), 0.006);
 //        EncogDirectoryPersistence.saveObject(new File("rbfcontroller2"), RBFController.getRbfnet());
         
 		// Using own method for training
@@ -105,6 +116,82 @@ public class Executor
 //		float controllerScore = exec.evalPolicy(NeuralNetworkController.createFromFile("controller"), new StarterGhosts(), numTrials);
 //		exec.runGame(NeuralNetworkController.createFromFile("controller"), new StarterGhosts(), true, 10);
 		
+		/*
+		//round-robin tournament of the bundled controllers; pairings are only replayed when a controller changed
+		final MyController linear=MyController.createFromFile("linearcontroller");
+		final NeuralNetworkController neural=NeuralNetworkController.createFromFile("neurocontroller");
+		long[] seeds=new long[100];
+		Random random=new Random(0);
+		for(int i=0;i<seeds.length;i++)
+			seeds[i]=random.nextLong();
+		Tournament tournament=new Tournament(seeds,Runtime.getRuntime().availableProcessors(),new File("tournament.cache"));
+		tournament.addPacMan("MyController",new ControllerFactory<MOVE>()
+		{
+			public Controller<MOVE> create()
+			{
+				return linear.copy();
+			}
+		});
+		tournament.addPacMan("NeuralNetwork",new ControllerFactory<MOVE>()
+		{
+			public Controller<MOVE> create()
+			{
+				return neural.copy();
+			}
+		});
+		tournament.addPacMan("StarterPacMan",new ControllerFactory<MOVE>()
+		{
+			public Controller<MOVE> create()
+			{
+				return new StarterPacMan();
+			}
+		});
+		tournament.addPacMan("NearestPill",new ControllerFactory<MOVE>()
+		{
+			public Controller<MOVE> create()
+			{
+				return new NearestPillPacMan();
+			}
+		});
+		tournament.addGhosts("StarterGhosts",new ControllerFactory<EnumMap<GHOST,MOVE>>()
+		{
+			public Controller<EnumMap<GHOST,MOVE>> create()
+			{
+				return new StarterGhosts();
+			}
+		});
+		tournament.addGhosts("Legacy",new ControllerFactory<EnumMap<GHOST,MOVE>>()
+		{
+			public Controller<EnumMap<GHOST,MOVE>> create()
+			{
+				return new Legacy();
+			}
+		});
+		tournament.addGhosts("Legacy2",new ControllerFactory<EnumMap<GHOST,MOVE>>()
+		{
+			public Controller<EnumMap<GHOST,MOVE>> create()
+			{
+				return new Legacy2TheReckoning();
+			}
+		});
+		tournament.addGhosts("Aggressive",new ControllerFactory<EnumMap<GHOST,MOVE>>()
+		{
+			public Controller<EnumMap<GHOST,MOVE>> create()
+			{
+				return new AggressiveGhosts();
+			}
+		});
+		tournament.addGhosts("Random",new ControllerFactory<EnumMap<GHOST,MOVE>>()
+		{
+			public Controller<EnumMap<GHOST,MOVE>> create()
+			{
+				return new RandomGhosts();
+			}
+		});
+		System.out.print(tournament.run());
+		tournament.shutdown();
+		 */
+		
 		/*
 		//run multiple games in batch mode - good for testing.
 		int numTrials=10;
@@ -291,26 +378,43 @@ public class Executor
     }
 
 	public static StateValuePair[] getStateValuePairs(ArrayList<String> replayStates, NeuralNetworkController neuralNetworkController) {
-		LinkedList<StateValuePair> stateValuePairList = new LinkedList<StateValuePair>();
-		
-		Game game=new Game(0);
-		for(String state : replayStates) {
-			game.setGameState(state);	
-			int currentNode = game.getPacmanCurrentNodeIndex();
-			for (MOVE move : game.getPossibleMoves(game.getPacmanCurrentNodeIndex())) {
-				Vector features = FeatureUtils.getFeatures(game, currentNode, move);
-				double estimation = neuralNetworkController.getValueFunctionEstimation(features);
-				stateValuePairList.add(new StateValuePair(features, estimation));
-			}
+		final ArrayList<StateValuePair> stateValuePairList = new ArrayList<StateValuePair>();
+
+		try {
+			new TrainingDataPipeline(neuralNetworkController).run(replayStates, new TrainingDataPipeline.RowSink() {
+				@Override
+				public void addRow(double[] input, double[] ideal) {
+					stateValuePairList.add(new StateValuePair(new Vector(input), ideal[0]));
+				}
+			});
+		} catch (IOException e) {
+			throw new IllegalStateException(e);	// the list does not throw
 		}
-		
-		StateValuePair[] stateValuePairs = new StateValuePair[stateValuePairList.size()];
-		int i = 0;
-		for (StateValuePair stateValuePair : stateValuePairList) {
-			stateValuePairs[i++] = stateValuePair;
+
+		return stateValuePairList.toArray(new StateValuePair[stateValuePairList.size()]);
+	}
+
+	/**
+	 * label every state of a binary replay with the value estimation of the neural network and
+	 * write the extended features and the values to a binary training set (see TrainingSetWriter)
+	 */
+	public static long writeTrainingSet(String replayFile, NeuralNetworkController nnC, String trainingSetFile) throws IOException {
+		TrainingDataPipeline pipeline = new TrainingDataPipeline(nnC, true, ForkJoinPool.commonPool());
+		try (ReplayReader replay = new ReplayReader(replayFile)) {
+			TrainingSetWriter writer = new TrainingSetWriter(trainingSetFile, pipeline.getInputSize(), 1, TrainingSetWriter.FLOAT32);
+			long rows;
+			boolean complete = false;
+			try {
+				rows = pipeline.run(replay, writer);
+				complete = true;
+			} finally {
+				// a failed run must not leave a training set that looks complete
+				if (!complete)
+					writer.abort();
+			}
+			writer.close();
+			return rows;
 		}
-		
-		return stateValuePairs;
 	}
 	
 	public static StateValuePair[] extendStateValuePairs(StateValuePair[] stateValuePairs) {
@@ -323,29 +427,26 @@ public class Executor
 		return extendedStateValuePairs;
 	}
 	
+	/**
+	 * get the coefficients of the linear function (without intercept) fitting the state value
+	 * pairs best in the least squares sense
+	 */
 	public static Vector getLinearRegressionCoefficients(StateValuePair[] stateValuePairs) {
 		if (stateValuePairs.length == 0)
 			throw new IllegalArgumentException();
 		
-		double[] coefficients = new double[stateValuePairs[0].getState().getDimension()];
-		NNR nn = new NNR(new int[] {coefficients.length, 1});
-		
-		double[][] inputValues = new double[stateValuePairs.length][coefficients.length];
-		double[][] outputValues = new double[stateValuePairs.length][1];
-		
-		for (int i = 0; i < stateValuePairs.length; i++) {
-			inputValues[i] = stateValuePairs[i].getState().getValues();
-			outputValues[i][0] = stateValuePairs[i].getValue();
-		}
-		
-		nn.train(inputValues, outputValues, 15000, 0);
-		double[] weights = nn.getWeights();
-		
-		for (int i = 0; i < coefficients.length; i++) {
-			coefficients[i] = weights[i];
-		}
+		return LeastSquares.accumulate(stateValuePairs).solve();
+	}
+	
+	/**
+	 * get the coefficients of the linear function (without intercept) of the input columns fitting
+	 * the first ideal column of the training set best in the least squares sense
+	 */
+	public static Vector getLinearRegressionCoefficients(TrainingSet trainingSet) {
+		if (trainingSet.getNumberOfRows() == 0)
+			throw new IllegalArgumentException();
 		
-		return new Vector(coefficients);
+		return LeastSquares.accumulate(trainingSet, 0).solve();
 	}
 	
     /**
@@ -381,6 +482,38 @@ public class Executor
 		
 		System.out.println(avgScore/trials);
     }
+    
+    /**
+     * For running multiple games without visuals on all cores. The result of every game is printed as CSV the moment
+     * it completes, followed by the statistics of the scores. The trials use the same seeds as the single-threaded version.
+     *
+     * @param pacManFactory Creates the Pac-Man controllers, one per worker thread
+     * @param ghostFactory Creates the Ghosts controllers, one per worker thread
+     * @param trials The number of trials to be executed
+     * @return The statistics of the scores
+     */
+    public static ExperimentRunner.Statistics runExperiment(ControllerFactory<MOVE> pacManFactory,ControllerFactory<EnumMap<GHOST,MOVE>> ghostFactory,int trials)
+    {
+    	Random rnd=new Random(0);
+    	long[] seeds=new long[trials];
+    	
+    	for(int i=0;i<trials;i++)
+    		seeds[i]=rnd.nextLong();
+    	
+    	ExperimentRunner runner=new ExperimentRunner();
+    	
+    	try
+    	{
+    		ExperimentRunner.Statistics statistics=runner.run(pacManFactory,ghostFactory,seeds,new OutputStreamWriter(System.out),ExperimentRunner.Format.CSV);
+    		System.out.println(statistics);
+    		
+    		return statistics;
+    	}
+    	finally
+    	{
+    		runner.shutdown();
+    	}
+    }
 	
 	/**
 	 * Run a game in asynchronous mode: the game waits until a move is returned. In order to slow thing down in case
@@ -469,6 +602,21 @@ public class Executor
 	 * @param visual Indicates whether or not to use visuals
      */
     public static void runGameTimedSpeedOptimised(Controller<MOVE> pacManController,Controller<EnumMap<GHOST,MOVE>> ghostController,boolean fixedTime,boolean visual)
+ 	{
+    	runGameTimedSpeedOptimised(pacManController,ghostController,fixedTime,visual,TimeUnit.MILLISECONDS.toNanos(DELAY));
+ 	}
+    
+    /**
+     * Run the game in asynchronous mode with the given time budget per tick. The game advances the moment both
+     * controllers replied, or when the budget is used up. With fixedTime, every tick lasts exactly the budget.
+     *     
+     * @param pacManController The Pac-Man controller
+     * @param ghostController The Ghosts controller
+     * @param fixedTime Whether or not to wait until the budget is used up even if both controllers already responded
+	 * @param visual Indicates whether or not to use visuals
+	 * @param tickBudget The time the controllers have per tick, in nanoseconds
+     */
+    public static void runGameTimedSpeedOptimised(Controller<MOVE> pacManController,Controller<EnumMap<GHOST,MOVE>> ghostController,boolean fixedTime,boolean visual,long tickBudget)
  	{
  		Game game=new Game(0);
  		
@@ -485,26 +633,20 @@ public class Executor
  		
  		while(!game.gameOver())
  		{
- 			pacManController.update(game.copy(),System.currentTimeMillis()+DELAY);
- 			ghostController.update(game.copy(),System.currentTimeMillis()+DELAY);
+ 			long deadline=System.nanoTime()+tickBudget;
+ 			long timeDue=System.currentTimeMillis()+TimeUnit.NANOSECONDS.toMillis(tickBudget);
+ 			
+ 			pacManController.update(game.copy(),timeDue);
+ 			ghostController.update(game.copy(),timeDue);
 
  			try
 			{
-				int waited=DELAY/INTERVAL_WAIT;
-				
-				for(int j=0;j<DELAY/INTERVAL_WAIT;j++)
-				{
-					Thread.sleep(INTERVAL_WAIT);
-					
-					if(pacManController.hasComputed() && ghostController.hasComputed())
-					{
-						waited=j;
-						break;
-					}
-				}
+				pacManController.awaitMove(deadline);
+				ghostController.awaitMove(deadline);
 				
 				if(fixedTime)
-					Thread.sleep(((DELAY/INTERVAL_WAIT)-waited)*INTERVAL_WAIT);
+					for(long left=deadline-System.nanoTime();left>0;left=deadline-System.nanoTime())
+						TimeUnit.NANOSECONDS.sleep(left);
 				
 				game.advanceGame(pacManController.getMove(),ghostController.getMove());	
 			}
@@ -531,8 +673,6 @@ public class Executor
 	 */
 	public static void runGameTimedRecorded(Controller<MOVE> pacManController,Controller<EnumMap<GHOST,MOVE>> ghostController,boolean visual,String fileName)
 	{
-		StringBuilder replay=new StringBuilder();
-		
 		Game game=new Game(0);
 		
 		GameView gv=null;
@@ -548,32 +688,40 @@ public class Executor
 		new Thread(pacManController).start();
 		new Thread(ghostController).start();
 		
-		while(!game.gameOver())
+		//the replay is streamed to the file as the game goes on
+		try(ReplayWriter replay=new ReplayWriter(fileName))
 		{
-			pacManController.update(game.copy(),System.currentTimeMillis()+DELAY);
-			ghostController.update(game.copy(),System.currentTimeMillis()+DELAY);
-
-			try
-			{
-				Thread.sleep(DELAY);
-			}
-			catch(InterruptedException e)
+			while(!game.gameOver())
 			{
-				e.printStackTrace();
+				pacManController.update(game.copy(),System.currentTimeMillis()+DELAY);
+				ghostController.update(game.copy(),System.currentTimeMillis()+DELAY);
+	
+				try
+				{
+					Thread.sleep(DELAY);
+				}
+				catch(InterruptedException e)
+				{
+					e.printStackTrace();
+				}
+	
+		        game.advanceGame(pacManController.getMove(),ghostController.getMove());	        
+		        
+		        if(visual)
+		        	gv.repaint();
+		        
+		        replay.append(game);
 			}
-
-	        game.advanceGame(pacManController.getMove(),ghostController.getMove());	        
-	        
-	        if(visual)
-	        	gv.repaint();
-	        
-	        replay.append(game.getGameState()+"\n");
 		}
-		
-		pacManController.terminate();
-		ghostController.terminate();
-		
-		saveToFile(replay.toString(),fileName,false);
+		catch(IOException e)
+		{
+			System.out.println("Could not save data!");
+		}
+		finally
+		{
+			pacManController.terminate();
+			ghostController.terminate();
+		}
 	}
 	
 	/**
@@ -584,8 +732,6 @@ public class Executor
 	 */
 	public static void replayGame(String fileName,boolean visual)
 	{
-		ArrayList<String> timeSteps=loadReplay(fileName);
-		
 		Game game=new Game(0);
 		
 		GameView gv=null;
@@ -593,20 +739,59 @@ public class Executor
 		if(visual)
 			gv=new GameView(game).showGame();
 		
-		for(int j=0;j<timeSteps.size();j++)
-		{			
-			game.setGameState(timeSteps.get(j));
-
-			try
-			{
-				Thread.sleep(DELAY);
-			}
-			catch(InterruptedException e)
-			{
-				e.printStackTrace();
+		if(!isBinaryReplay(fileName))
+		{
+			//replay in the text format of older versions
+			ArrayList<String> timeSteps=loadReplay(fileName);
+			
+			for(int j=0;j<timeSteps.size();j++)
+			{			
+				game.setGameState(timeSteps.get(j));
+				showReplayStep(gv);
 			}
-	        if(visual)
-	        	gv.repaint();
+			
+			return;
+		}
+		
+		try(ReplayReader replay=new ReplayReader(fileName))
+		{
+			while(replay.next(game))
+				showReplayStep(gv);
+		}
+		catch(IOException e)
+		{
+			e.printStackTrace();
+		}
+	}
+	
+	private static void showReplayStep(GameView gv)
+	{
+		try
+		{
+			Thread.sleep(DELAY);
+		}
+		catch(InterruptedException e)
+		{
+			e.printStackTrace();
+		}
+		
+        if(gv!=null)
+        	gv.repaint();
+	}
+	
+	//whether the file was written by ReplayWriter
+	private static boolean isBinaryReplay(String fileName)
+	{
+		try(FileInputStream in=new FileInputStream(fileName))
+		{
+			byte[] header=new byte[5];
+			int read=in.read(header);
+			
+			return read>0 && ReplayReader.isReplay(ByteBuffer.wrap(header,0,read));
+		}
+		catch(IOException e)
+		{
+			return false;
 		}
 	}
 	
@@ -629,10 +814,28 @@ public class Executor
         }
     }  
 
-    //load a replay
+    //load a replay, one game state per time step in the format of Game.getGameState()
     private static ArrayList<String> loadReplay(String fileName)
 	{
     	ArrayList<String> replay=new ArrayList<String>();
+    	
+    	if(isBinaryReplay(fileName))
+    	{
+    		//written by ReplayWriter: decode every state
+    		try(ReplayReader binaryReplay=new ReplayReader(fileName))
+    		{
+    			Game game=new Game(0);
+    			
+    			while(binaryReplay.next(game))
+    				replay.add(game.getGameState());
+    		}
+    		catch(IOException e)
+    		{
+    			e.printStackTrace();
+    		}
+    		
+    		return replay;
+    	}
 		
         try
         {         	
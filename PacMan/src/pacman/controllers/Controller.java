@@ -1,5 +1,11 @@
 package pacman.controllers;
 
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
 import pacman.game.Game;
 
 /**
@@ -12,11 +18,12 @@ import pacman.game.Game;
  */
 public abstract class Controller<T> implements Runnable
 {
-	private boolean alive,wasSignalled,hasComputed;
-	private volatile boolean threadStillRunning;
-	private long timeDue;
-	private Game game;
-	protected T lastMove;	//this is now protected. You can set this directly in your getMove() method to save an immediate response.
+	private volatile boolean alive;
+	private volatile Thread worker;
+	private final AtomicReference<Request> mailbox;	//the latest request not yet taken by the worker
+	private final AtomicLong requested,computed;		//sequence numbers of the latest request and the latest answered request
+	private volatile Request latest;					//the latest request, whether it was taken or not
+	protected volatile T lastMove;	//this is now protected. You can set this directly in your getMove() method to save an immediate response.
 
 	/**
 	 * Instantiates a new controller. The constructor initialises the class variables.
@@ -24,43 +31,47 @@ public abstract class Controller<T> implements Runnable
 	public Controller()
 	{
 		alive=true;
-		wasSignalled=false;
-		hasComputed=false;
-		threadStillRunning=false;
+		mailbox=new AtomicReference<Request>();
+		requested=new AtomicLong();
+		computed=new AtomicLong();
 	}
 
 	/**
-	 * Terminates the controller: a signal is sent and the flag 'alive' is set to false. When
-	 * the thread wakes up, the outer loop will terminate and the thread finishes.
+	 * Terminates the controller: the flag 'alive' is set to false and the worker is woken up.
+	 * A move that is being computed is completed first, then the thread finishes.
 	 */
 	public final void terminate()
 	{
 		alive=false;
-		wasSignalled=true;
 
-		synchronized(this)
-		{
-			notify();
-		}
+		Thread thread=worker;
+
+		if(thread!=null)
+			LockSupport.unpark(thread);
 	}
 
 	/**
-	 * Updates the game state: a copy of the game is passed to this method and the class variable is
-	 * updated accordingly.
+	 * Updates the game state: a copy of the game is passed to this method and put into the mailbox
+	 * of the worker. If the worker is still busy with an earlier request, the new request replaces any
+	 * request that is still waiting, so the worker always continues with the latest game state.
 	 *
 	 * @param game A copy of the current game
 	 * @param timeDue The time the next move is due
 	 */
 	public final void update(Game game,long timeDue)
 	{
-		synchronized(this)
-		{
-			this.game=game;
-			this.timeDue=timeDue;
-			wasSignalled=true;
-			hasComputed=false;
-			notify();
-		}
+		Request request=new Request(game,timeDue,requested.incrementAndGet());
+		latest=request;
+
+		Request replaced=mailbox.getAndSet(request);
+
+		if(replaced!=null)
+			replaced.done.countDown();		//never answered: release anyone waiting for it
+
+		Thread thread=worker;
+
+		if(thread!=null)
+			LockSupport.unpark(thread);
 	}
 
 	/**
@@ -73,44 +84,30 @@ public abstract class Controller<T> implements Runnable
 		return lastMove;
 	}
 	
-	/* (non-Javadoc)
-	 * @see java.lang.Runnable#run()
+	/**
+	 * The decision loop: the thread running the controller waits for requests and computes the
+	 * moves itself, so no thread is created per request.
 	 */
 	public final void run()
 	{
+		worker=Thread.currentThread();
+
 		while(alive)
 		{
-			synchronized(this)
+			Request request=mailbox.getAndSet(null);
+
+			if(request==null)
 			{
-				while(!wasSignalled)
-				{
-					try
-					{
-						wait();
-					}
-					catch(InterruptedException e)
-					{
-						e.printStackTrace();
-					}
-				}
-				
-				if(!threadStillRunning)
-				{
-					new Thread()
-					{
-						public void run()
-						{
-							threadStillRunning=true;
-							lastMove = getMove(game,timeDue);
-							hasComputed=true;
-							threadStillRunning=false;
-						}
-					}.start();
-				}
-				
-				wasSignalled=false;
+				LockSupport.park(this);
+				continue;
 			}
+
+			decide(request.game,request.timeDue);
+			computed.set(request.sequence);
+			request.done.countDown();
 		}
+
+		worker=null;
 	}
 	
 	/**
@@ -121,7 +118,48 @@ public abstract class Controller<T> implements Runnable
 	 */
 	public final boolean hasComputed()
 	{
-		return hasComputed;
+		return computed.get()==requested.get();
+	}
+
+	/**
+	 * Computes a move on the calling thread and stores it as the latest move, exactly like the
+	 * worker started by run() does. This is used by schedulers that manage their own threads. An
+	 * exception thrown by getMove() is printed and the previous move is kept.
+	 *
+	 * @param game A copy of the current game
+	 * @param timeDue The time the next move is due
+	 * @return The latest move
+	 */
+	public final T decide(Game game,long timeDue)
+	{
+		try
+		{
+			lastMove=getMove(game,timeDue);
+		}
+		catch(RuntimeException e)
+		{
+			e.printStackTrace();	//keep the previous move and stay available for the next request
+		}
+
+		return lastMove;
+	}
+
+	/**
+	 * Waits until the controller answered the latest update or the deadline has passed, whichever
+	 * comes first. The caller is woken up as soon as the move is available.
+	 *
+	 * @param deadline The deadline in the time base of System.nanoTime()
+	 * @return Whether or not the controller computed a move since the last update
+	 * @throws InterruptedException if the calling thread is interrupted while waiting
+	 */
+	public final boolean awaitMove(long deadline) throws InterruptedException
+	{
+		Request request=latest;
+
+		if(request!=null)
+			request.done.await(deadline-System.nanoTime(),TimeUnit.NANOSECONDS);
+
+		return hasComputed();
 	}
 
 	/**
@@ -136,4 +174,33 @@ public abstract class Controller<T> implements Runnable
 	 * @return The move to be played (i.e., the move calculated by your controller)
 	 */
 	public abstract T getMove(Game game,long timeDue);
+
+	/**
+	 * Seeds the random number generator of the controller, so that the games it plays can be
+	 * repeated exactly. Controllers that do not draw random numbers can ignore it, which is the
+	 * default.
+	 *
+	 * @param seed The seed for the random number generator
+	 */
+	public void setSeed(long seed)
+	{
+	}
+
+	/*
+	 * A single request to the worker.
+	 */
+	private static final class Request
+	{
+		final Game game;
+		final long timeDue;
+		final long sequence;
+		final CountDownLatch done=new CountDownLatch(1);
+
+		Request(Game game,long timeDue,long sequence)
+		{
+			this.game=game;
+			this.timeDue=timeDue;
+			this.sequence=sequence;
+		}
+	}
 }
\ No newline at end of file
@@ -0,0 +1,13 @@
+package pacman.controllers;
+
+/**
+ * Creates new instances of a controller. Used wherever several games are played at the same
+ * time, since a single controller instance must not be shared between concurrent games.
+ *
+ * @param <T> The generic type of the move returned by the controllers created.
+ */
+public interface ControllerFactory<T> {
+
+	public Controller<T> create();
+
+}
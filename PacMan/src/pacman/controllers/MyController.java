@@ -8,17 +8,20 @@ import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.EnumMap;
 import java.util.Map;
+import java.util.Random;
 
 import pacman.game.Constants.GHOST;
 import pacman.game.Constants.MOVE;
 import pacman.game.Game;
+import pacman.utils.FeatureContext;
+import pacman.utils.FeatureExtractor;
 import pacman.utils.Vector;
-import static pacman.utils.FeatureUtils.*;
 
 public class MyController extends AController implements Serializable{
 
 	private static final long serialVersionUID = 1L;
 	private LinearFunction valueFunction;
+	private transient Random random;	// draws the moves, created on first use (also after loading from file)
 
 	public MyController(Vector parameters) {
 		valueFunction = new LinearFunction(parameters);
@@ -26,19 +29,20 @@ public class MyController extends AController implements Serializable{
 
 	@Override
 	public MOVE getMove(Game game, long timeDue) {
+		FeatureExtractor extractor = FeatureExtractor.forCurrentThread();
+		FeatureContext context = extractor.prepare(game);
 		int currentNode = game.getPacmanCurrentNodeIndex();
 
 		// get possible moves and sane moves
 		MOVE[] possibleMoves = game.getPossibleMoves(currentNode);
-		MOVE[] saneMoves = filterSaneMoves(possibleMoves, game, currentNode);
+		MOVE[] saneMoves = filterSaneMoves(possibleMoves, context, currentNode);
 		if (saneMoves.length == 0)
 			saneMoves = possibleMoves;
 		
 		// compute move "possibilities"
 		EnumMap<MOVE, Double> moveChances = new EnumMap<MOVE, Double>(MOVE.class);
 		for (MOVE move : saneMoves) {
-			Vector features = extendFeatures(getFeatures(game, currentNode, move));
-			double value = getValueFunctionEstimation(features);
+			double value = getValueFunctionEstimation(extractor.getExtendedFeatures(context, currentNode, move));
 			double expValue = Math.exp(value);
 			moveChances.put(move, expValue);
 		}
@@ -50,17 +54,31 @@ public class MyController extends AController implements Serializable{
 		}
 		
 		// select move
-		double random = Math.random();
+		double threshold = getRandom().nextDouble();
 		double aux = 0;
 		for (MOVE move : saneMoves) {
 			aux += moveChances.get(move);
-			if (aux >= random)
+			if (aux >= threshold)
 				return move;
 		}
 
 		return MOVE.NEUTRAL;
 	}
 
+	private Random getRandom() {
+		if (random == null)
+			random = new Random();
+		return random;
+	}
+
+	/**
+	 * seed the generator the moves are drawn from
+	 */
+	@Override
+	public void setSeed(long seed) {
+		getRandom().setSeed(seed);
+	}
+
 	//sum up e^estimation of all moves
 	public double getMovesNormalizationScale(MOVE[] saneMoves, EnumMap<MOVE, Double> moveValues){
 		double sum = 0;
@@ -79,9 +97,15 @@ public class MyController extends AController implements Serializable{
 	
 	//filter the possible moves to saneMoves
 	public MOVE[] filterSaneMoves(MOVE[] possibleMoves, Game game, int nodeIndex) {
+		return filterSaneMoves(possibleMoves, FeatureExtractor.forCurrentThread().prepare(game), nodeIndex);
+	}
+
+	//filter the possible moves to saneMoves, using the context of the current tick
+	public MOVE[] filterSaneMoves(MOVE[] possibleMoves, FeatureContext context, int nodeIndex) {
+		FeatureExtractor extractor = FeatureExtractor.forCurrentThread();
 		ArrayList<MOVE> saneMoves = new ArrayList<MOVE>();
 		for (MOVE move : possibleMoves) {
-			if (isSane(game, nodeIndex, move))
+			if (extractor.isSane(context, nodeIndex, move))
 				saneMoves.add(move);
 		}
 		return saneMoves.toArray(new MOVE[0]);
@@ -91,6 +115,10 @@ public class MyController extends AController implements Serializable{
 		return valueFunction.getOutput(input) + 25;
 	}
 
+	public double getValueFunctionEstimation(double[] input) {
+		return valueFunction.getOutput(input) + 25;
+	}
+
 	public Vector getPolicyParameters() {
 		return valueFunction.getCoefficients();
 	}
@@ -112,6 +140,10 @@ public class MyController extends AController implements Serializable{
 			return coefficients.dot(input);
 		}
 
+		public double getOutput(double[] input) {
+			return coefficients.dot(input);
+		}
+
 		public void setCoefficients(Vector coefficients) {
 			if (coefficients.getDimension() != this.coefficients.getDimension())
 				throw new IllegalArgumentException();
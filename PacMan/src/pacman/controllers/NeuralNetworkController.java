@@ -3,6 +3,8 @@ package pacman.controllers;
 import neuralNetwork.NNR;
 import pacman.game.Constants.MOVE;
 import pacman.game.Game;
+import pacman.utils.FeatureContext;
+import pacman.utils.FeatureExtractor;
 import pacman.utils.FeatureUtils;
 import pacman.utils.Vector;
 
@@ -17,6 +19,7 @@ public class NeuralNetworkController extends Controller<MOVE> {
 	
 	@Override
 	public MOVE getMove(Game game, long timeDue) {
+		FeatureContext context = FeatureExtractor.forCurrentThread().prepare(game);
 		int currentNode = game.getPacmanCurrentNodeIndex();
 		MOVE lastMove = game.getPacmanLastMoveMade();
 		
@@ -25,11 +28,11 @@ public class NeuralNetworkController extends Controller<MOVE> {
 		
 		if (game.getNeighbour(currentNode, lastMove) != -1) {
 			bestMove = lastMove;
-			bestMoveValueEstimation = getValueFunctionEstimation(FeatureUtils.getFeatures(game, currentNode, lastMove));
+			bestMoveValueEstimation = getValueFunctionEstimation(FeatureUtils.getFeatures(context, currentNode, lastMove));
 		}
 		
 		for (MOVE move : game.getPossibleMoves(game.getPacmanCurrentNodeIndex())) {
-			Vector features = FeatureUtils.getFeatures(game, game.getPacmanCurrentNodeIndex(), move);
+			Vector features = FeatureUtils.getFeatures(context, currentNode, move);
 			double estimation = getValueFunctionEstimation(features);
 			if (bestMoveValueEstimation < estimation) {
 				bestMoveValueEstimation = estimation;
@@ -63,6 +66,27 @@ public class NeuralNetworkController extends Controller<MOVE> {
 		return null;
 	}
 	
+	/**
+	 * create a controller with its own copy of the value function, to be used by another thread
+	 */
+	public NeuralNetworkController copy() {
+		NeuralNetworkController controller = new NeuralNetworkController();
+		controller.valueFunction = new NNR(valueFunction.getTopology(), valueFunction.getWeights().clone(), valueFunction.getBiases().clone());
+		return controller;
+	}
+	
+	/**
+	 * get the weights followed by the biases of the value function
+	 */
+	public double[] getValueFunctionParameters() {
+		double[] weights = valueFunction.getWeights();
+		double[] biases = valueFunction.getBiases();
+		double[] parameters = new double[weights.length + biases.length];
+		System.arraycopy(weights, 0, parameters, 0, weights.length);
+		System.arraycopy(biases, 0, parameters, weights.length, biases.length);
+		return parameters;
+	}
+	
 	public double getValueFunctionEstimation(Vector input) {
 		return valueFunction.getOutput(input.getValues())[0];
 	}
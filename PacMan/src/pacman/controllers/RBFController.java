@@ -18,6 +18,9 @@ import org.encog.util.csv.ReadCSV;
 
 import pacman.game.Game;
 import pacman.game.Constants.MOVE;
+import pacman.utils.FeatureContext;
+import pacman.utils.FeatureExtractor;
+import pacman.utils.TrainingSet;
 import pacman.utils.Vector;
 import static pacman.utils.FeatureUtils.getFeatures;
 import static pacman.utils.FeatureUtils.extendFeatures;
@@ -43,8 +46,15 @@ public class RBFController extends AController {
         public RBFController(String filename){
                 setRbfnet((RBFNetwork)EncogDirectoryPersistence.loadObject(new File(filename)));
         }
+        /**
+         * get the training data from a binary training set (see TrainingSetWriter), which is mapped
+         * instead of read, or from a csv file with the ideal value in the last column
+         */
         public MLDataSet getTrainingData(String csvfile) throws IOException {
                 File f = new File(csvfile);
+                if (f.isFile() && TrainingSet.isTrainingSet(csvfile)) {
+                        return new TrainingSet(csvfile);
+                }
                 int lncount = 0;
                 FileReader fs = new FileReader(f);
                 BufferedReader br = new BufferedReader(fs);
@@ -57,8 +67,8 @@ public class RBFController extends AController {
                         // System.out.println(reader.getColumnNames());
                         int columns = reader.getColumnNames().size();
                         if (columns > 0) {
-                                INPUT = new double[lncount][columns];
-                                IDEAL = new double[lncount][columns];
+                                INPUT = new double[lncount][columns - 1];
+                                IDEAL = new double[lncount][1];
                                 int j = 0;
                                 FileReader fs2 = new FileReader(f);
                                 BufferedReader br2 = new BufferedReader(fs2);
@@ -93,7 +103,7 @@ public class RBFController extends AController {
         public void trainNetwork(String csvfile, String outputfile) throws IOException {
         		File f = new File(csvfile);
         		if (f.isFile()) {
-        			MLDataSet trainingD = getTrainingData("training.csv");
+        			MLDataSet trainingD = getTrainingData(csvfile);
         			final ResilientPropagation train = new ResilientPropagation(getRbfnet(),trainingD);
         			
         			train.iteration();
@@ -118,6 +128,7 @@ public class RBFController extends AController {
         }
         @Override
         public MOVE getMove(Game game, long timeDue) {
+                FeatureContext context = FeatureExtractor.forCurrentThread().prepare(game);
                 int currentNode = game.getPacmanCurrentNodeIndex();
                 MOVE lastMove = game.getPacmanLastMoveMade();
                 
@@ -126,11 +137,11 @@ public class RBFController extends AController {
                 
                 if (game.getNeighbour(currentNode, lastMove) != -1) {
                         bestMove = lastMove;
-                        bestMoveValueEstimation = getValueFunctionEstimation(extendFeatures(getFeatures(game, currentNode, lastMove)).getValues())[0];
+                        bestMoveValueEstimation = getValueFunctionEstimation(extendFeatures(getFeatures(context, currentNode, lastMove)).getValues())[0];
                 }
                 
                 for (MOVE move : game.getPossibleMoves(game.getPacmanCurrentNodeIndex())) {
-                        double estimation = getValueFunctionEstimation(extendFeatures(getFeatures(game, currentNode, move)).getValues())[0];
+                        double estimation = getValueFunctionEstimation(extendFeatures(getFeatures(context, currentNode, move)).getValues())[0];
                         System.out.println(Double.toString(estimation));
                         if (bestMoveValueEstimation < estimation) {
                                 bestMoveValueEstimation = estimation;
@@ -38,4 +38,12 @@ public final class AggressiveGhosts extends Controller<EnumMap<GHOST,MOVE>>
 
 		return myMoves;
 	}
+	
+	/* (non-Javadoc)
+	 * @see pacman.controllers.Controller#setSeed(long)
+	 */
+	public void setSeed(long seed)
+	{
+		rnd.setSeed(seed);
+	}
 }
\ No newline at end of file
@@ -42,4 +42,12 @@ public class Legacy extends Controller<EnumMap<GHOST,MOVE>>
 		
 		return myMoves;
 	}
+	
+	/* (non-Javadoc)
+	 * @see pacman.controllers.Controller#setSeed(long)
+	 */
+	public void setSeed(long seed)
+	{
+		rnd.setSeed(seed);
+	}
 }
\ No newline at end of file
@@ -29,4 +29,12 @@ public final class RandomGhosts extends Controller<EnumMap<GHOST,MOVE>>
 		
 		return moves;
 	}
+	
+	/* (non-Javadoc)
+	 * @see pacman.controllers.Controller#setSeed(long)
+	 */
+	public void setSeed(long seed)
+	{
+		rnd.setSeed(seed);
+	}
 }
\ No newline at end of file
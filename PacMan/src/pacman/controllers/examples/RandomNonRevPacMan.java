@@ -22,4 +22,12 @@ public final class RandomNonRevPacMan extends Controller<MOVE>
 		
 		return possibleMoves[rnd.nextInt(possibleMoves.length)];
 	}
+	
+	/* (non-Javadoc)
+	 * @see pacman.controllers.Controller#setSeed(long)
+	 */
+	public void setSeed(long seed)
+	{
+		rnd.setSeed(seed);
+	}
 }
\ No newline at end of file
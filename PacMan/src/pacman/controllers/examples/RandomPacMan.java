@@ -20,4 +20,12 @@ public final class RandomPacMan extends Controller<MOVE>
 	{
 		return allMoves[rnd.nextInt(allMoves.length)];
 	}
+	
+	/* (non-Javadoc)
+	 * @see pacman.controllers.Controller#setSeed(long)
+	 */
+	public void setSeed(long seed)
+	{
+		rnd.setSeed(seed);
+	}
 }
\ No newline at end of file
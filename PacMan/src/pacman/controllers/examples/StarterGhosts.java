@@ -61,4 +61,12 @@ public final class StarterGhosts extends Controller<EnumMap<GHOST,MOVE>>
 
         return false;
     }
+	
+	/* (non-Javadoc)
+	 * @see pacman.controllers.Controller#setSeed(long)
+	 */
+	public void setSeed(long seed)
+	{
+		rnd.setSeed(seed);
+	}
 }
\ No newline at end of file
@@ -1,14 +1,19 @@
 package pacman.game;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.BitSet;
 import java.util.EnumMap;
-import java.util.Random;
 import java.util.Map.Entry;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import pacman.game.Constants.DM;
 import pacman.game.Constants.MOVE;
+import pacman.game.internal.GameRandom;
 import pacman.game.internal.Ghost;
 import pacman.game.internal.Maze;
-import pacman.game.internal.Node;
 import pacman.game.internal.PacMan;
 import pacman.game.internal.PathsCache;
 
@@ -16,7 +21,7 @@ import static pacman.game.Constants.*;
 
 /**
  * The implementation of Ms Pac-Man. This class contains the game engine and all methods required to
- * query the state of the game. First, the mazes are loaded once only as they are immutable. The game
+ * query the state of the game. First, the mazes are loaded once only, on first use, as they are immutable. The game
  * then proceeds to initialise all variables using default values. The game class also provides numerous
  * methods to extract the game state as a string (used for replays and for communication via pipes during
  * the competition) and to create copies. Care has been taken to implement the game efficiently to ensure
@@ -36,6 +41,10 @@ import static pacman.game.Constants.*;
  */
 public final class Game
 {
+	//version of the binary encoding written by encodeGameState, to be increased whenever the layout changes
+	public static final byte GAME_STATE_CODEC_VERSION=1;
+	private static final MOVE[] MOVES=MOVE.values();
+	
 	//pills stored as bitsets for efficient copying
 	private BitSet pills, powerPills;
 	//all the game's variables
@@ -46,30 +55,39 @@ public final class Game
 	private PacMan pacman;
 	private EnumMap<GHOST, Ghost> ghosts;
 
-	//mazes are only loaded once since they don't change over time
-	private static Maze[] mazes=new Maze[NUM_MAZES];;
-	
-	private Maze currentMaze;
-	
-	static 
-	{
-		for(int i=0;i<mazes.length;i++)
-			mazes[i]=new Maze(i);
-	}
-	
-	public static PathsCache[] caches=new PathsCache[NUM_MAZES];
+	//mazes and their path caches are only loaded once since they don't change over time; each is loaded on first use
+	private static final AtomicReferenceArray<Maze> mazes=new AtomicReferenceArray<Maze>(NUM_MAZES);
+	private static final AtomicReferenceArray<PathsCache> caches=new AtomicReferenceArray<PathsCache>(NUM_MAZES);
+	private static final Object[] mazeLocks=new Object[NUM_MAZES], cacheLocks=new Object[NUM_MAZES];
 	
 	static 
 	{
-		for(int i=0;i<mazes.length;i++)
+		for(int i=0;i<NUM_MAZES;i++)
 		{
-			caches[i]=new PathsCache(i);
+			mazeLocks[i]=new Object();
+			cacheLocks[i]=new Object();
 		}
 	}
 	
-	private Random rnd;
+	//the next maze is loaded in the background whenever a game or a new level starts
+	private static volatile boolean prefetchMazes=true;
+	private static final boolean[] prefetchRequested=new boolean[NUM_MAZES];
+	private static ExecutorService prefetcher;
+	private static volatile Thread prefetchThread;
+	
+	private Maze currentMaze;
+	
+	private GameRandom rnd;
 	private long seed;	
 	
+	//undo frames of makeMove, stored as fixed-size records in primitive arrays
+	private static final int UNDO_INTS=29, UNDO_REFS=4;
+	private int[] undoInts;
+	private long[] undoRandomStates;
+	private Object[] undoRefs;
+	private int undoDepth;
+	private boolean recordUndo;
+	
 	/////////////////////////////////////////////////////////////////////////////
 	///////////////////  Constructors and initialisers  /////////////////////////
 	/////////////////////////////////////////////////////////////////////////////
@@ -85,7 +103,7 @@ public final class Game
 	public Game(long seed)
 	{		
 		this.seed=seed;
-		rnd=new Random(seed);
+		rnd=new GameRandom(seed);
 		
 		_init(0);
 	}
@@ -99,7 +117,7 @@ public final class Game
 	public Game(long seed,int initialMaze)
 	{						
 		this.seed=seed;
-		rnd=new Random(seed);
+		rnd=new GameRandom(seed);
 		
 		_init(initialMaze);		
 	}
@@ -108,7 +126,128 @@ public final class Game
 	 * Empty constructor used by the copy method.
 	 */
 	private Game(){}
+
+	/**
+	 * Gets the maze with the index specified, loading it on first use. Safe to call from
+	 * several threads; each maze is only loaded once.
+	 *
+	 * @param mazeIndex The index of the maze
+	 * @return The maze
+	 */
+	public static Maze getMaze(int mazeIndex)
+	{
+		Maze maze=mazes.get(mazeIndex);
+		
+		if(maze==null)
+		{
+			synchronized(mazeLocks[mazeIndex])
+			{
+				maze=mazes.get(mazeIndex);
+				
+				if(maze==null)
+				{
+					maze=new Maze(mazeIndex);
+					mazes.set(mazeIndex,maze);
+				}
+			}
+		}
+		
+		return maze;
+	}
+	
+	/**
+	 * Gets the pre-computed paths of the maze with the index specified, computing them on first use.
+	 * Safe to call from several threads; the paths of each maze are only computed once.
+	 *
+	 * @param mazeIndex The index of the maze
+	 * @return The paths cache of the maze
+	 */
+	public static PathsCache getPathsCache(int mazeIndex)
+	{
+		PathsCache cache=caches.get(mazeIndex);
+		
+		if(cache==null)
+		{
+			synchronized(cacheLocks[mazeIndex])
+			{
+				cache=caches.get(mazeIndex);
+				
+				if(cache==null)
+				{
+					cache=new PathsCache(mazeIndex);
+					caches.set(mazeIndex,cache);
+				}
+			}
+		}
+		
+		return cache;
+	}
+	
+	/**
+	 * Enables or disables loading the next maze in the background whenever a game or a new level starts.
+	 * Enabled by default.
+	 *
+	 * @param prefetch Whether to prefetch the next maze
+	 */
+	public static void setPrefetchMazes(boolean prefetch)
+	{
+		prefetchMazes=prefetch;
+	}
 	
+	/**
+	 * Loads the maze and paths cache with the index specified on a background thread, unless
+	 * prefetching is disabled or they have been requested before. Games created while loading
+	 * (the paths cache builds one) do not prefetch further mazes, so only the requested maze
+	 * is loaded.
+	 *
+	 * @param mazeIndex The index of the maze
+	 */
+	static synchronized void _prefetchMaze(final int mazeIndex)
+	{
+		if(!prefetchMazes || prefetchRequested[mazeIndex] || Thread.currentThread()==prefetchThread)
+			return;
+		
+		prefetchRequested[mazeIndex]=true;
+		
+		if(prefetcher==null)
+		{
+			prefetcher=Executors.newSingleThreadExecutor(new ThreadFactory()
+			{
+				public Thread newThread(Runnable runnable)
+				{
+					Thread thread=new Thread(runnable,"maze-prefetcher");
+					thread.setDaemon(true);
+					thread.setPriority(Thread.MIN_PRIORITY);
+					prefetchThread=thread;
+					return thread;
+				}
+			});
+		}
+		
+		prefetcher.execute(new Runnable()
+		{
+			public void run()
+			{
+				getMaze(mazeIndex);
+				getPathsCache(mazeIndex);
+			}
+		});
+	}
+
+	/**
+	 * Resets the game to the state of a newly created game using the seed supplied. This
+	 * allows the same instance to be re-used for many trials instead of creating a new one.
+	 *
+	 * @param seed The seed for the pseudo-random number generator
+	 */
+	public void reset(long seed)
+	{
+		this.seed=seed;
+		rnd.setSeed(seed);
+
+		_init(0);
+	}
+
 	/**
 	 * _init.
 	 *
@@ -116,6 +255,7 @@ public final class Game
 	 */
 	private void _init(int initialMaze)
 	{
+		_clearUndo();
 		mazeIndex=initialMaze;
 		score=currentLevelTime=levelCount=totalTime=0;
 		ghostEatMultiplier=1;
@@ -130,7 +270,8 @@ public final class Game
 		for(GHOST ghost : GHOST.values())
 			ghostsEaten.put(ghost,false);
 		
-		_setPills(currentMaze=mazes[mazeIndex]);
+		_setPills(currentMaze=getMaze(mazeIndex));
+		_prefetchMaze((mazeIndex+1)%NUM_MAZES);
 		_initGhosts();
 		
 		pacman=new PacMan(currentMaze.initialPacManNodeIndex,MOVE.LEFT,NUM_LIVES,false);		
@@ -143,7 +284,8 @@ public final class Game
 	{
 		mazeIndex=++mazeIndex%NUM_MAZES;
 		levelCount++;
-		currentMaze=mazes[mazeIndex];
+		currentMaze=getMaze(mazeIndex);
+		_prefetchMaze((mazeIndex+1)%NUM_MAZES);
 		
 		currentLevelTime=0;
 		ghostEatMultiplier=1;
@@ -249,6 +391,8 @@ public final class Game
 	 */
 	public void setGameState(String gameState)
 	{	
+		_clearUndo();
+		
 		String[] values=gameState.split(",");
 		
 		int index=0;
@@ -268,7 +412,7 @@ public final class Game
 			ghosts.put(ghostType,new Ghost(ghostType,Integer.parseInt(values[index++]),Integer.parseInt(values[index++]),
 					Integer.parseInt(values[index++]),MOVE.valueOf(values[index++])));
 			
-		_setPills(currentMaze=mazes[mazeIndex]);
+		_setPills(currentMaze=getMaze(mazeIndex));
 		
 		for(int i=0;i<values[index].length();i++)
 			if(values[index].charAt(i)=='1')
@@ -296,44 +440,247 @@ public final class Game
 		powerPillWasEaten=Boolean.parseBoolean(values[++index]);
 	}
 	
+	/**
+	 * Encodes the complete game state into the buffer, starting at its current position: a
+	 * binary alternative to getGameState() that creates no intermediate strings. Pills are
+	 * stored as a packed bitset. Unlike the string, the encoding also contains the state of the
+	 * random number generator, the ghost eat multiplier and whether the game is over, so a
+	 * decoded game continues exactly like the original. The buffer's position is advanced past
+	 * the encoding, which is getEncodedGameStateLength() bytes long.
+	 *
+	 * @param buffer The buffer to write to
+	 * @throws java.nio.BufferOverflowException if the buffer has not enough space remaining
+	 */
+	public void encodeGameState(ByteBuffer buffer)
+	{
+		buffer.put(GAME_STATE_CODEC_VERSION);
+		buffer.put((byte)mazeIndex);
+		buffer.putInt(totalTime);
+		buffer.putInt(score);
+		buffer.putInt(currentLevelTime);
+		buffer.putInt(levelCount);
+		buffer.putInt(timeOfLastGlobalReversal);
+		buffer.putInt(ghostEatMultiplier);
+		buffer.putLong(rnd.getState());
+		
+		buffer.putShort((short)pacman.currentNodeIndex);
+		buffer.put((byte)pacman.lastMoveMade.ordinal());
+		buffer.put((byte)pacman.numberOfLivesRemaining);
+		buffer.put((byte)((pacman.hasReceivedExtraLife ? 1 : 0) | (gameOver ? 2 : 0) | (pacmanWasEaten ? 4 : 0) 
+				| (pillWasEaten ? 8 : 0) | (powerPillWasEaten ? 16 : 0)));
+		
+		int eaten=0;
+		
+		for(GHOST ghostType : GHOST.values())
+		{
+			Ghost ghost=ghosts.get(ghostType);
+			
+			buffer.putShort((short)ghost.currentNodeIndex);
+			buffer.putShort((short)ghost.edibleTime);
+			buffer.putShort((short)ghost.lairTime);
+			buffer.put((byte)ghost.lastMoveMade.ordinal());
+			
+			if(ghostsEaten.get(ghostType))
+				eaten|=1<<ghostType.ordinal();
+		}
+		
+		buffer.put((byte)eaten);
+		
+		_encodeBits(buffer,pills,currentMaze.pillIndices.length);
+		_encodeBits(buffer,powerPills,currentMaze.powerPillIndices.length);
+	}
+	
+	/**
+	 * Sets the game state from an encoding written by encodeGameState(), starting at the
+	 * buffer's current position, and advances the position past it. The pacman and ghost
+	 * objects held by this game are re-used.
+	 *
+	 * @param buffer The buffer to read from
+	 * @throws IllegalArgumentException if the encoding was written by an unknown version of the codec
+	 */
+	public void decodeGameState(ByteBuffer buffer)
+	{
+		byte version=buffer.get();
+		
+		if(version!=GAME_STATE_CODEC_VERSION)
+			throw new IllegalArgumentException("unknown game state encoding version: "+version);
+		
+		_clearUndo();
+		
+		mazeIndex=buffer.get();
+		currentMaze=getMaze(mazeIndex);
+		totalTime=buffer.getInt();
+		score=buffer.getInt();
+		currentLevelTime=buffer.getInt();
+		levelCount=buffer.getInt();
+		timeOfLastGlobalReversal=buffer.getInt();
+		ghostEatMultiplier=buffer.getInt();
+		
+		if(rnd==null)
+			rnd=new GameRandom(0);
+		
+		rnd.setState(buffer.getLong());
+		
+		if(pacman==null)
+			pacman=new PacMan(0,MOVE.NEUTRAL,0,false);
+		
+		pacman.currentNodeIndex=buffer.getShort();
+		pacman.lastMoveMade=MOVES[buffer.get()];
+		pacman.numberOfLivesRemaining=buffer.get();
+		
+		int flags=buffer.get();
+		pacman.hasReceivedExtraLife=(flags&1)!=0;
+		gameOver=(flags&2)!=0;
+		pacmanWasEaten=(flags&4)!=0;
+		pillWasEaten=(flags&8)!=0;
+		powerPillWasEaten=(flags&16)!=0;
+		
+		if(ghosts==null)
+		{
+			ghosts=new EnumMap<GHOST,Ghost>(GHOST.class);
+			ghostsEaten=new EnumMap<GHOST,Boolean>(GHOST.class);
+		}
+		
+		for(GHOST ghostType : GHOST.values())
+		{
+			Ghost ghost=ghosts.get(ghostType);
+			
+			if(ghost==null)
+				ghosts.put(ghostType,ghost=new Ghost(ghostType,0,0,0,MOVE.NEUTRAL));
+			
+			ghost.currentNodeIndex=buffer.getShort();
+			ghost.edibleTime=buffer.getShort();
+			ghost.lairTime=buffer.getShort();
+			ghost.lastMoveMade=MOVES[buffer.get()];
+		}
+		
+		int eaten=buffer.get();
+		
+		for(GHOST ghostType : GHOST.values())
+			ghostsEaten.put(ghostType,(eaten&(1<<ghostType.ordinal()))!=0);
+		
+		pills=_decodeBits(buffer,currentMaze.pillIndices.length);
+		powerPills=_decodeBits(buffer,currentMaze.powerPillIndices.length);
+	}
+	
+	/**
+	 * Returns the number of bytes encodeGameState() writes for the current state. It only
+	 * changes with the maze.
+	 *
+	 * @return The length of the encoding in bytes
+	 */
+	public int getEncodedGameStateLength()
+	{
+		return 2+6*4+8+5+NUM_GHOSTS*7+1+(currentMaze.pillIndices.length+7)/8+(currentMaze.powerPillIndices.length+7)/8;
+	}
+	
+	//writes the first numBits bits of the bitset, 8 per byte
+	private static void _encodeBits(ByteBuffer buffer,BitSet bits,int numBits)
+	{
+		long[] words=bits.toLongArray();
+		
+		for(int i=0;i<numBits;i+=8)
+		{
+			int word=i>>>6;
+			buffer.put(word<words.length ? (byte)(words[word]>>>(i&63)) : 0);
+		}
+	}
+	
+	//reads numBits bits written by _encodeBits into a new bitset
+	private static BitSet _decodeBits(ByteBuffer buffer,int numBits)
+	{
+		long[] words=new long[(numBits+63)>>>6];
+		
+		for(int i=0;i<numBits;i+=8)
+			words[i>>>6]|=(buffer.get()&0xFFL)<<(i&63);
+		
+		if((numBits&63)!=0)
+			words[words.length-1]&=(1L<<(numBits&63))-1;	//ignore the padding of the last byte
+		
+		return BitSet.valueOf(words);
+	}
+	
 	/**
 	 * Returns an exact copy of the game. This may be used for forward searches
-	 * such as minimax. The copying is relatively efficient.
+	 * such as minimax. The copying is relatively efficient. The copy continues
+	 * the random sequence of this game from its current state.
 	 *
 	 * @return the game
 	 */
 	public Game copy()
 	{
-		Game copy=new Game();
-			
-		copy.seed=seed;
-		copy.rnd=new Random(seed);
-		copy.currentMaze=currentMaze;		
-		copy.pills=(BitSet)pills.clone();
-		copy.powerPills=(BitSet)powerPills.clone();		
-		copy.mazeIndex=mazeIndex;
-		copy.levelCount=levelCount;
-		copy.currentLevelTime=currentLevelTime;		
-		copy.totalTime=totalTime;
-		copy.score=score;
-		copy.ghostEatMultiplier=ghostEatMultiplier;
-		copy.gameOver=gameOver;
-		copy.timeOfLastGlobalReversal=timeOfLastGlobalReversal;		
-		copy.pacmanWasEaten=pacmanWasEaten;
-		copy.pillWasEaten=pillWasEaten;
-		copy.powerPillWasEaten=powerPillWasEaten;		
-		copy.pacman=pacman.copy();
-		
-		copy.ghostsEaten=new EnumMap<GHOST,Boolean>(GHOST.class);
-		copy.ghosts=new EnumMap<GHOST,Ghost>(GHOST.class);
+		return copyInto(new Game());
+	}
+	
+	/**
+	 * Overwrites the target with an exact copy of this game, the same copy() would return. The
+	 * objects already held by the target are re-used, so once the target has been used for a game
+	 * of the same maze nothing is allocated. Use GamePool to re-use targets in a forward search.
+	 *
+	 * @param target The game to overwrite
+	 * @return the target
+	 */
+	public Game copyInto(Game target)
+	{
+		target.seed=seed;
+		
+		if(target.rnd==null)
+			target.rnd=rnd.copy();
+		else
+			target.rnd.setState(rnd.getState());
+		
+		target.currentMaze=currentMaze;
+		
+		if(target.pills==null)
+		{
+			target.pills=(BitSet)pills.clone();
+			target.powerPills=(BitSet)powerPills.clone();
+		}
+		else
+		{
+			target.pills.clear();
+			target.pills.or(pills);
+			target.powerPills.clear();
+			target.powerPills.or(powerPills);
+		}
+		
+		target.mazeIndex=mazeIndex;
+		target.levelCount=levelCount;
+		target.currentLevelTime=currentLevelTime;		
+		target.totalTime=totalTime;
+		target.score=score;
+		target.ghostEatMultiplier=ghostEatMultiplier;
+		target.gameOver=gameOver;
+		target.timeOfLastGlobalReversal=timeOfLastGlobalReversal;		
+		target.pacmanWasEaten=pacmanWasEaten;
+		target.pillWasEaten=pillWasEaten;
+		target.powerPillWasEaten=powerPillWasEaten;
+		target._clearUndo();
+		
+		if(target.pacman==null)
+			target.pacman=pacman.copy();
+		else
+			target.pacman.copyFrom(pacman);
+		
+		if(target.ghosts==null)
+		{
+			target.ghostsEaten=new EnumMap<GHOST,Boolean>(GHOST.class);
+			target.ghosts=new EnumMap<GHOST,Ghost>(GHOST.class);
+		}
 		
 		for(GHOST ghostType : GHOST.values())
 		{
-			copy.ghosts.put(ghostType,ghosts.get(ghostType).copy());
-			copy.ghostsEaten.put(ghostType,ghostsEaten.get(ghostType));
+			Ghost ghost=target.ghosts.get(ghostType);
+			
+			if(ghost==null)
+				target.ghosts.put(ghostType,ghosts.get(ghostType).copy());
+			else
+				ghost.copyFrom(ghosts.get(ghostType));
+			
+			target.ghostsEaten.put(ghostType,ghostsEaten.get(ghostType));
 		}
 			
-		return copy;	
+		return target;	
 	}
 
 	/////////////////////////////////////////////////////////////////////////////
@@ -381,6 +728,202 @@ public final class Game
 		updateGame();
 	}
 		
+	/**
+	 * Advances the game like advanceGame() and records how to undo the step, so a search can
+	 * explore a move and take it back with unmakeMove() instead of copying the game. Only the
+	 * fields that may change during a step are recorded; the pills are restored from the index
+	 * of the pill eaten, or by keeping the old pills when the level changes.
+	 *
+	 * @param pacManMove The move supplied by the Ms Pac-Man controller
+	 * @param ghostMoves The moves supplied by the ghosts controller
+	 */
+	public void makeMove(MOVE pacManMove,EnumMap<GHOST,MOVE> ghostMoves)
+	{
+		_pushUndoFrame();
+		
+		try
+		{
+			advanceGame(pacManMove,ghostMoves);
+		}
+		finally
+		{
+			recordUndo=false;
+		}
+	}
+	
+	/**
+	 * Advances the game like advanceGameWithoutReverse() and records how to undo the step.
+	 *
+	 * @param pacManMove The move supplied by the Ms Pac-Man controller
+	 * @param ghostMoves The moves supplied by the ghosts controller
+	 * @see #makeMove(MOVE, EnumMap)
+	 */
+	public void makeMoveWithoutReverse(MOVE pacManMove,EnumMap<GHOST,MOVE> ghostMoves)
+	{
+		_pushUndoFrame();
+		
+		try
+		{
+			advanceGameWithoutReverse(pacManMove,ghostMoves);
+		}
+		finally
+		{
+			recordUndo=false;
+		}
+	}
+	
+	/**
+	 * Takes back the last step made with makeMove() or makeMoveWithoutReverse(), restoring the
+	 * exact state before it, including the state of the random number generator.
+	 *
+	 * @throws IllegalStateException if there is no step to take back
+	 */
+	@SuppressWarnings("unchecked")
+	public void unmakeMove()
+	{
+		if(undoDepth==0)
+			throw new IllegalStateException("no move to unmake");
+		
+		undoDepth--;
+		
+		int i=undoDepth*UNDO_INTS;
+		int r=undoDepth*UNDO_REFS;
+		
+		//a level change replaces these objects, so they are restored first
+		pills=(BitSet)undoRefs[r];
+		powerPills=(BitSet)undoRefs[r+1];
+		ghosts=(EnumMap<GHOST,Ghost>)undoRefs[r+2];
+		currentMaze=(Maze)undoRefs[r+3];
+		undoRefs[r]=undoRefs[r+1]=undoRefs[r+2]=undoRefs[r+3]=null;
+		
+		rnd.setState(undoRandomStates[undoDepth]);
+		
+		mazeIndex=undoInts[i++];
+		levelCount=undoInts[i++];
+		currentLevelTime=undoInts[i++];
+		totalTime=undoInts[i++];
+		score=undoInts[i++];
+		ghostEatMultiplier=undoInts[i++];
+		timeOfLastGlobalReversal=undoInts[i++];
+		
+		int flags=undoInts[i++];
+		gameOver=(flags&1)!=0;
+		pacmanWasEaten=(flags&2)!=0;
+		pillWasEaten=(flags&4)!=0;
+		powerPillWasEaten=(flags&8)!=0;
+		pacman.hasReceivedExtraLife=(flags&16)!=0;
+		
+		for(GHOST ghostType : GHOST.values())
+			ghostsEaten.put(ghostType,(flags&(32<<ghostType.ordinal()))!=0);
+		
+		pacman.currentNodeIndex=undoInts[i++];
+		pacman.lastMoveMade=MOVES[undoInts[i++]];
+		pacman.numberOfLivesRemaining=undoInts[i++];
+		
+		for(GHOST ghostType : GHOST.values())
+		{
+			Ghost ghost=ghosts.get(ghostType);
+			ghost.currentNodeIndex=undoInts[i++];
+			ghost.edibleTime=undoInts[i++];
+			ghost.lairTime=undoInts[i++];
+			ghost.lastMoveMade=MOVES[undoInts[i++]];
+		}
+		
+		int pillIndex=undoInts[i++];
+		int powerPillIndex=undoInts[i++];
+		
+		if(pillIndex>=0)
+			pills.set(pillIndex);
+		
+		if(powerPillIndex>=0)
+			powerPills.set(powerPillIndex);
+	}
+	
+	/**
+	 * Returns the number of steps that can be taken back with unmakeMove().
+	 *
+	 * @return The number of recorded steps
+	 */
+	public int getUndoDepth()
+	{
+		return undoDepth;
+	}
+	
+	/**
+	 * Drops all recorded steps, e.g. when the state is replaced as a whole.
+	 */
+	private void _clearUndo()
+	{
+		if(undoRefs!=null)
+			Arrays.fill(undoRefs,0,undoDepth*UNDO_REFS,null);
+		
+		undoDepth=0;
+	}
+	
+	/**
+	 * Records the state a step may change on top of the undo stack.
+	 */
+	private void _pushUndoFrame()
+	{
+		if(undoInts==null)
+		{
+			undoInts=new int[16*UNDO_INTS];
+			undoRandomStates=new long[16];
+			undoRefs=new Object[16*UNDO_REFS];
+		}
+		else if(undoDepth==undoRandomStates.length)
+		{
+			undoInts=Arrays.copyOf(undoInts,undoInts.length*2);
+			undoRandomStates=Arrays.copyOf(undoRandomStates,undoRandomStates.length*2);
+			undoRefs=Arrays.copyOf(undoRefs,undoRefs.length*2);
+		}
+		
+		int i=undoDepth*UNDO_INTS;
+		int r=undoDepth*UNDO_REFS;
+		
+		undoRefs[r]=pills;
+		undoRefs[r+1]=powerPills;
+		undoRefs[r+2]=ghosts;
+		undoRefs[r+3]=currentMaze;
+		
+		undoRandomStates[undoDepth]=rnd.getState();
+		
+		undoInts[i++]=mazeIndex;
+		undoInts[i++]=levelCount;
+		undoInts[i++]=currentLevelTime;
+		undoInts[i++]=totalTime;
+		undoInts[i++]=score;
+		undoInts[i++]=ghostEatMultiplier;
+		undoInts[i++]=timeOfLastGlobalReversal;
+		
+		int flags=(gameOver ? 1 : 0) | (pacmanWasEaten ? 2 : 0) | (pillWasEaten ? 4 : 0) | (powerPillWasEaten ? 8 : 0)
+				| (pacman.hasReceivedExtraLife ? 16 : 0);
+		
+		for(GHOST ghostType : GHOST.values())
+			if(ghostsEaten.get(ghostType))
+				flags|=32<<ghostType.ordinal();
+		
+		undoInts[i++]=flags;
+		undoInts[i++]=pacman.currentNodeIndex;
+		undoInts[i++]=pacman.lastMoveMade.ordinal();
+		undoInts[i++]=pacman.numberOfLivesRemaining;
+		
+		for(GHOST ghostType : GHOST.values())
+		{
+			Ghost ghost=ghosts.get(ghostType);
+			undoInts[i++]=ghost.currentNodeIndex;
+			undoInts[i++]=ghost.edibleTime;
+			undoInts[i++]=ghost.lairTime;
+			undoInts[i++]=ghost.lastMoveMade.ordinal();
+		}
+		
+		undoInts[i++]=-1;		//pill eaten during the step, set by _eatPill
+		undoInts[i++]=-1;		//power pill eaten during the step, set by _eatPowerPill
+		
+		undoDepth++;
+		recordUndo=true;
+	}
+	
 	/**
 	 * Updates the state of Ms Pac-Man given the move returned by the controller.
 	 *
@@ -489,7 +1032,7 @@ public final class Game
 	{
 		pacman.lastMoveMade=_correctPacManDir(move);		
 		pacman.currentNodeIndex=pacman.lastMoveMade == MOVE.NEUTRAL ? pacman.currentNodeIndex : 
-			currentMaze.graph[pacman.currentNodeIndex].neighbourhood.get(pacman.lastMoveMade);
+			currentMaze.neighbours[pacman.currentNodeIndex*Maze.NUM_MOVES+pacman.lastMoveMade.ordinal()];
 	}
 
 	/**
@@ -500,15 +1043,15 @@ public final class Game
 	 */
 	private MOVE _correctPacManDir(MOVE direction)
 	{
-		Node node=currentMaze.graph[pacman.currentNodeIndex];
+		int moveMask=currentMaze.moveMasks[pacman.currentNodeIndex];
 		
-		//direction is correct, return it
-		if(node.neighbourhood.containsKey(direction))
+		//direction is correct, return it (null if the controller did not respond in time)
+		if(direction!=null && (moveMask & 1<<direction.ordinal())!=0)
 			return direction;
 		else
 		{
 			//try to use previous direction (i.e., continue in the same direction)
-			if(node.neighbourhood.containsKey(pacman.lastMoveMade))
+			if((moveMask & 1<<pacman.lastMoveMade.ordinal())!=0)
 				return pacman.lastMoveMade;
 			//else stay put
 			else
@@ -533,7 +1076,7 @@ public final class Game
 				{
 					ghost.lastMoveMade=_checkGhostDir(ghost,entry.getValue());					
 					moves.put(entry.getKey(), ghost.lastMoveMade);					
-					ghost.currentNodeIndex=currentMaze.graph[ghost.currentNodeIndex].neighbourhood.get(ghost.lastMoveMade);
+					ghost.currentNodeIndex=currentMaze.neighbours[ghost.currentNodeIndex*Maze.NUM_MOVES+ghost.lastMoveMade.ordinal()];
 				}
 			}
 		}
@@ -567,18 +1110,18 @@ public final class Game
 	private MOVE _checkGhostDir(Ghost ghost,MOVE direction)
 	{
 		//Gets the neighbours of the node with the node that would correspond to reverse removed
-		Node node=currentMaze.graph[ghost.currentNodeIndex];
+		int moveMask=currentMaze.moveMasks[ghost.currentNodeIndex];
 		
 		//The direction is possible and not opposite to the previous direction of that ghost
-		if(node.neighbourhood.containsKey(direction) && direction!=ghost.lastMoveMade.opposite())
+		if(direction!=null && (moveMask & 1<<direction.ordinal())!=0 && direction!=ghost.lastMoveMade.opposite())
 			return direction;
 		else
 		{
-			if(node.neighbourhood.containsKey(ghost.lastMoveMade))
+			if((moveMask & 1<<ghost.lastMoveMade.ordinal())!=0)
 				return ghost.lastMoveMade;
 			else
 			{
-				MOVE[] moves=node.allPossibleMoves.get(ghost.lastMoveMade);
+				MOVE[] moves=currentMaze.possibleMoves[ghost.currentNodeIndex*Maze.NUM_MOVES+ghost.lastMoveMade.ordinal()];
 				return moves[rnd.nextInt(moves.length)];				
 			}
 		}
@@ -598,6 +1141,9 @@ public final class Game
 			score+=PILL;
 			pills.clear(pillIndex);
 			pillWasEaten=true;
+			
+			if(recordUndo)
+				undoInts[undoDepth*UNDO_INTS-2]=pillIndex;
 		}
 	}
 	
@@ -616,6 +1162,9 @@ public final class Game
 			ghostEatMultiplier=1;
 			powerPills.clear(powerPillIndex);
 			
+			if(recordUndo)
+				undoInts[undoDepth*UNDO_INTS-1]=powerPillIndex;
+			
 			int newEdibleTime=(int)(EDIBLE_TIME*(Math.pow(EDIBLE_TIME_REDUCTION,levelCount%LEVEL_RESET_REDUCTION)));
 			
 			for(Ghost ghost : ghosts.values())
@@ -633,7 +1182,7 @@ public final class Game
 		boolean reversed=false;		
 		boolean globalReverse=false;
 			
-		if(Math.random()<GHOST_REVERSAL)
+		if(rnd.nextDouble()<GHOST_REVERSAL)
 			globalReverse=true;
 		
 		for(Entry<GHOST,MOVE> entry : moves.entrySet())
@@ -645,7 +1194,7 @@ public final class Game
 				if(force || (powerPillWasEaten || globalReverse))
 				{
 					ghost.lastMoveMade=ghost.lastMoveMade.opposite();
-					ghost.currentNodeIndex=currentMaze.graph[ghost.currentNodeIndex].neighbourhood.get(ghost.lastMoveMade);
+					ghost.currentNodeIndex=currentMaze.neighbours[ghost.currentNodeIndex*Maze.NUM_MOVES+ghost.lastMoveMade.ordinal()];
 					reversed=true;
 					timeOfLastGlobalReversal = totalTime;
 				}
@@ -1165,7 +1714,7 @@ public final class Game
 	 */
 	public boolean isJunction(int nodeIndex)
 	{
-		return currentMaze.graph[nodeIndex].numNeighbouringNodes>2;
+		return Integer.bitCount(currentMaze.moveMasks[nodeIndex])>2;
 	}
 	
 	/**
@@ -1176,7 +1725,7 @@ public final class Game
 	 */
 	public MOVE[] getPossibleMoves(int nodeIndex)
 	{
-		return currentMaze.graph[nodeIndex].allPossibleMoves.get(MOVE.NEUTRAL);
+		return currentMaze.possibleMoves[nodeIndex*Maze.NUM_MOVES+MOVE.NEUTRAL.ordinal()];
 	}
 	
 	/**
@@ -1184,11 +1733,14 @@ public final class Game
 	 *
 	 * @param nodeIndex The current node index
 	 * @param lastModeMade The last mode made (possible moves will exclude the reverse)
-	 * @return The set of possible moves
+	 * @return The set of possible moves, or null if lastModeMade is null
 	 */
 	public MOVE[] getPossibleMoves(int nodeIndex,MOVE lastModeMade)
 	{
-		return currentMaze.graph[nodeIndex].allPossibleMoves.get(lastModeMade);
+		if(lastModeMade==null)
+			return null;
+		
+		return currentMaze.possibleMoves[nodeIndex*Maze.NUM_MOVES+lastModeMade.ordinal()];
 	}
 	
 	/**
@@ -1199,7 +1751,7 @@ public final class Game
 	 */
 	public int[] getNeighbouringNodes(int nodeIndex)
 	{
-		return currentMaze.graph[nodeIndex].allNeighbouringNodes.get(MOVE.NEUTRAL);
+		return currentMaze.neighbouringNodes[nodeIndex*Maze.NUM_MOVES+MOVE.NEUTRAL.ordinal()];
 	}
 	
 	/**
@@ -1208,16 +1760,19 @@ public final class Game
 	 *
 	 * @param nodeIndex The current node index
 	 * @param lastModeMade The last mode made
-	 * @return The set of neighbouring nodes except the one that is opposite of the last move made
+	 * @return The set of neighbouring nodes except the one that is opposite of the last move made, or null if lastModeMade is null
 	 */
 	public int[] getNeighbouringNodes(int nodeIndex,MOVE lastModeMade)
 	{
-		return currentMaze.graph[nodeIndex].allNeighbouringNodes.get(lastModeMade);
+		if(lastModeMade==null)
+			return null;
+		
+		return currentMaze.neighbouringNodes[nodeIndex*Maze.NUM_MOVES+lastModeMade.ordinal()];
 	}
 	
    /**
     * Given a node index and a move to be made, it returns the node index the move takes one to.
-    * If there is no neighbour in that direction, the method returns -1.
+    * If there is no neighbour in that direction (or the move is null), the method returns -1.
     * 
     * @param nodeIndex The current node index
 	* @param moveToBeMade The move to be made
@@ -1225,9 +1780,10 @@ public final class Game
     */
     public int getNeighbour(int nodeIndex, MOVE moveToBeMade)
     {
-    	Integer neighbour=currentMaze.graph[nodeIndex].neighbourhood.get(moveToBeMade);
+    	if(moveToBeMade==null)
+    		return -1;
     	
-    	return neighbour==null ? -1 : neighbour;
+    	return currentMaze.neighbours[nodeIndex*Maze.NUM_MOVES+moveToBeMade.ordinal()];
     }
     	
 	/**
@@ -1240,10 +1796,9 @@ public final class Game
 	 */
 	public MOVE getMoveToMakeToReachDirectNeighbour(int currentNodeIndex,int neighbourNodeIndex)
 	{
-		for(MOVE move : MOVE.values())
+		for(MOVE move : getPossibleMoves(currentNodeIndex))
 		{
-			if(currentMaze.graph[currentNodeIndex].neighbourhood.containsKey(move) 
-					&& currentMaze.graph[currentNodeIndex].neighbourhood.get(move)==neighbourNodeIndex)
+			if(currentMaze.neighbours[currentNodeIndex*Maze.NUM_MOVES+move.ordinal()]==neighbourNodeIndex)
 			{
 				return move;
 			}
@@ -1268,9 +1823,9 @@ public final class Game
 		if(fromNodeIndex==toNodeIndex)
 			return 0;		
 		else if(fromNodeIndex<toNodeIndex)
-			return currentMaze.shortestPathDistances[((toNodeIndex*(toNodeIndex+1))/2)+fromNodeIndex];
+			return currentMaze.shortestPathDistances.get(((toNodeIndex*(toNodeIndex+1))/2)+fromNodeIndex);
 		else
-			return currentMaze.shortestPathDistances[((fromNodeIndex*(fromNodeIndex+1))/2)+toNodeIndex];
+			return currentMaze.shortestPathDistances.get(((fromNodeIndex*(fromNodeIndex+1))/2)+toNodeIndex);
 	}
 	
 	/**
@@ -1593,7 +2148,7 @@ public final class Game
 	 */
 	public int[] getShortestPath(int fromNodeIndex,int toNodeIndex)
 	{
-		return caches[mazeIndex].getPathFromA2B(fromNodeIndex,toNodeIndex);
+		return getPathsCache(mazeIndex).getPathFromA2B(fromNodeIndex,toNodeIndex);
 	}
 	
 	/**
@@ -1629,7 +2184,7 @@ public final class Game
 		if(currentMaze.graph[fromNodeIndex].neighbourhood.size()==0)//lair
 			return new int[0];
 
-		return caches[mazeIndex].getPathFromA2B(fromNodeIndex,toNodeIndex,lastMoveMade);
+		return getPathsCache(mazeIndex).getPathFromA2B(fromNodeIndex,toNodeIndex,lastMoveMade);
 	}
 	
 	/**
@@ -1663,6 +2218,6 @@ public final class Game
 		if(currentMaze.graph[fromNodeIndex].neighbourhood.size()==0)//lair
 			return 0;
 
-		return caches[mazeIndex].getPathDistanceFromA2B(fromNodeIndex,toNodeIndex,lastMoveMade);
+		return getPathsCache(mazeIndex).getPathDistanceFromA2B(fromNodeIndex,toNodeIndex,lastMoveMade);
 	}
 }
\ No newline at end of file
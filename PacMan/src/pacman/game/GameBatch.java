@@ -0,0 +1,805 @@
+package pacman.game;
+
+import java.nio.ByteBuffer;
+import java.util.EnumMap;
+import pacman.game.Constants.GHOST;
+import pacman.game.Constants.MOVE;
+import pacman.game.internal.GameRandom;
+import pacman.game.internal.Maze;
+
+import static pacman.game.Constants.*;
+
+/**
+ * A batch of independent games advanced in lockstep. Instead of one object graph per game, the
+ * state of all games is stored in primitive arrays indexed by game (and ghost), so advancing the
+ * whole batch walks a few contiguous arrays. The rules are exactly those of Game.advanceGame() and
+ * Game.advanceGameWithoutReverse(): a game of the batch started with the same seed and given the
+ * same moves goes through exactly the same states as a Game.
+ *
+ * Games that are over are left untouched when the batch is advanced. To use the query API of Game
+ * or to run existing controllers on a game of the batch, materialise it with copyInto(); to put a
+ * state into the batch, use setGame(). Both go through the binary game state encoding of Game.
+ *
+ * A batch is not thread-safe; to use several threads, give each thread its own batch.
+ */
+public final class GameBatch
+{
+	private static final MOVE[] MOVES=MOVE.values();
+	private static final int NEUTRAL=MOVE.NEUTRAL.ordinal(), LEFT=MOVE.LEFT.ordinal();
+	private static final int PILL_WORDS=4;				//pills of a game are stored in PILL_WORDS longs, enough for every maze
+	private static final int[] OPPOSITE=new int[MOVES.length];
+
+	static
+	{
+		for(MOVE move : MOVES)
+			OPPOSITE[move.ordinal()]=move.opposite().ordinal();
+	}
+
+	private final int size;
+
+	//per game
+	private final int[] mazeIndex, levelCount, currentLevelTime, totalTime, score, ghostEatMultiplier, timeOfLastGlobalReversal;
+	private final boolean[] gameOver, pacmanWasEaten, pillWasEaten, powerPillWasEaten, hasReceivedExtraLife;
+	private final int[] ghostsEaten, powerPills;			//bit per ghost / power pill
+	private final long[] pills;							//PILL_WORDS words per game
+	private final long[] randomStates;
+	private final int[] pacmanNode, pacmanLastMove, pacmanLives;
+
+	//per game and ghost, indexed by game*NUM_GHOSTS+ghost
+	private final int[] ghostNode, ghostEdibleTime, ghostLairTime, ghostLastMove;
+
+	private final Maze[] mazes=new Maze[NUM_MAZES];
+	private final GameRandom rnd=new GameRandom(0);
+	private final int[] moves=new int[NUM_GHOSTS];
+	private ByteBuffer buffer;
+
+	/**
+	 * Creates a batch of new games, one per seed, each equal to new Game(seed).
+	 *
+	 * @param seeds The seeds of the games
+	 */
+	public GameBatch(long[] seeds)
+	{
+		this(seeds.length);
+
+		for(int g=0;g<size;g++)
+			reset(g,seeds[g]);
+	}
+
+	/**
+	 * Creates a batch of the given size. All games are equal to new Game(0) until they are
+	 * reset or set otherwise.
+	 *
+	 * @param size The number of games
+	 */
+	public GameBatch(int size)
+	{
+		this.size=size;
+
+		mazeIndex=new int[size];
+		levelCount=new int[size];
+		currentLevelTime=new int[size];
+		totalTime=new int[size];
+		score=new int[size];
+		ghostEatMultiplier=new int[size];
+		timeOfLastGlobalReversal=new int[size];
+		gameOver=new boolean[size];
+		pacmanWasEaten=new boolean[size];
+		pillWasEaten=new boolean[size];
+		powerPillWasEaten=new boolean[size];
+		hasReceivedExtraLife=new boolean[size];
+		ghostsEaten=new int[size];
+		powerPills=new int[size];
+		pills=new long[size*PILL_WORDS];
+		randomStates=new long[size];
+		pacmanNode=new int[size];
+		pacmanLastMove=new int[size];
+		pacmanLives=new int[size];
+		ghostNode=new int[size*NUM_GHOSTS];
+		ghostEdibleTime=new int[size*NUM_GHOSTS];
+		ghostLairTime=new int[size*NUM_GHOSTS];
+		ghostLastMove=new int[size*NUM_GHOSTS];
+
+		for(int g=0;g<size;g++)
+			reset(g,0);
+	}
+
+	/**
+	 * Returns the number of games in the batch.
+	 *
+	 * @return The number of games
+	 */
+	public int size()
+	{
+		return size;
+	}
+
+	/////////////////////////////////////////////////////////////////////////////
+	///////////////////////  Initialisation and exchange  ///////////////////////
+	/////////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Resets a game of the batch to the state of new Game(seed).
+	 *
+	 * @param g The index of the game
+	 * @param seed The seed for the pseudo-random number generator
+	 */
+	public void reset(int g,long seed)
+	{
+		rnd.setSeed(seed);
+		randomStates[g]=rnd.getState();
+
+		mazeIndex[g]=0;
+		score[g]=currentLevelTime[g]=levelCount[g]=totalTime[g]=0;
+		ghostEatMultiplier[g]=1;
+		gameOver[g]=false;
+		timeOfLastGlobalReversal[g]=-1;
+		pacmanWasEaten[g]=false;
+		pillWasEaten[g]=false;
+		powerPillWasEaten[g]=false;
+		ghostsEaten[g]=0;
+
+		Maze maze=_maze(0);
+		_setPills(g,maze);
+		_initGhosts(g,maze);
+
+		pacmanNode[g]=maze.initialPacManNodeIndex;
+		pacmanLastMove[g]=LEFT;
+		pacmanLives[g]=NUM_LIVES;
+		hasReceivedExtraLife[g]=false;
+	}
+
+	/**
+	 * Sets a game of the batch to the state of the source game.
+	 *
+	 * @param g The index of the game
+	 * @param source The game to copy
+	 */
+	public void setGame(int g,Game source)
+	{
+		ByteBuffer buffer=_buffer();
+		source.encodeGameState(buffer);
+		buffer.flip();
+		decodeGameState(g,buffer);
+	}
+
+	/**
+	 * Overwrites the target with the state of a game of the batch. The target can then be
+	 * queried or passed to controllers like any other game.
+	 *
+	 * @param g The index of the game
+	 * @param target The game to overwrite
+	 * @return the target
+	 */
+	public Game copyInto(int g,Game target)
+	{
+		ByteBuffer buffer=_buffer();
+		encodeGameState(g,buffer);
+		buffer.flip();
+		target.decodeGameState(buffer);
+
+		return target;
+	}
+
+	/**
+	 * Returns a new game with the state of a game of the batch.
+	 *
+	 * @param g The index of the game
+	 * @return The game
+	 */
+	public Game getGame(int g)
+	{
+		return copyInto(g,new Game(0));
+	}
+
+	/**
+	 * Encodes a game of the batch in the format of Game.encodeGameState().
+	 *
+	 * @param g The index of the game
+	 * @param buffer The buffer to write to
+	 */
+	public void encodeGameState(int g,ByteBuffer buffer)
+	{
+		Maze maze=_maze(mazeIndex[g]);
+
+		buffer.put(Game.GAME_STATE_CODEC_VERSION);
+		buffer.put((byte)mazeIndex[g]);
+		buffer.putInt(totalTime[g]);
+		buffer.putInt(score[g]);
+		buffer.putInt(currentLevelTime[g]);
+		buffer.putInt(levelCount[g]);
+		buffer.putInt(timeOfLastGlobalReversal[g]);
+		buffer.putInt(ghostEatMultiplier[g]);
+		buffer.putLong(randomStates[g]);
+
+		buffer.putShort((short)pacmanNode[g]);
+		buffer.put((byte)pacmanLastMove[g]);
+		buffer.put((byte)pacmanLives[g]);
+		buffer.put((byte)((hasReceivedExtraLife[g] ? 1 : 0) | (gameOver[g] ? 2 : 0) | (pacmanWasEaten[g] ? 4 : 0)
+				| (pillWasEaten[g] ? 8 : 0) | (powerPillWasEaten[g] ? 16 : 0)));
+
+		for(int i=g*NUM_GHOSTS;i<(g+1)*NUM_GHOSTS;i++)
+		{
+			buffer.putShort((short)ghostNode[i]);
+			buffer.putShort((short)ghostEdibleTime[i]);
+			buffer.putShort((short)ghostLairTime[i]);
+			buffer.put((byte)ghostLastMove[i]);
+		}
+
+		buffer.put((byte)ghostsEaten[g]);
+
+		for(int i=0;i<maze.pillIndices.length;i+=8)
+			buffer.put((byte)(pills[g*PILL_WORDS+(i>>>6)]>>>(i&63)));
+
+		for(int i=0;i<maze.powerPillIndices.length;i+=8)
+			buffer.put((byte)(powerPills[g]>>>i));
+	}
+
+	/**
+	 * Sets a game of the batch from an encoding written by Game.encodeGameState().
+	 *
+	 * @param g The index of the game
+	 * @param buffer The buffer to read from
+	 * @throws IllegalArgumentException if the encoding was written by an unknown version of the codec
+	 */
+	public void decodeGameState(int g,ByteBuffer buffer)
+	{
+		byte version=buffer.get();
+
+		if(version!=Game.GAME_STATE_CODEC_VERSION)
+			throw new IllegalArgumentException("unknown game state encoding version: "+version);
+
+		mazeIndex[g]=buffer.get();
+		totalTime[g]=buffer.getInt();
+		score[g]=buffer.getInt();
+		currentLevelTime[g]=buffer.getInt();
+		levelCount[g]=buffer.getInt();
+		timeOfLastGlobalReversal[g]=buffer.getInt();
+		ghostEatMultiplier[g]=buffer.getInt();
+		randomStates[g]=buffer.getLong();
+
+		pacmanNode[g]=buffer.getShort();
+		pacmanLastMove[g]=buffer.get();
+		pacmanLives[g]=buffer.get();
+
+		int flags=buffer.get();
+		hasReceivedExtraLife[g]=(flags&1)!=0;
+		gameOver[g]=(flags&2)!=0;
+		pacmanWasEaten[g]=(flags&4)!=0;
+		pillWasEaten[g]=(flags&8)!=0;
+		powerPillWasEaten[g]=(flags&16)!=0;
+
+		for(int i=g*NUM_GHOSTS;i<(g+1)*NUM_GHOSTS;i++)
+		{
+			ghostNode[i]=buffer.getShort();
+			ghostEdibleTime[i]=buffer.getShort();
+			ghostLairTime[i]=buffer.getShort();
+			ghostLastMove[i]=buffer.get();
+		}
+
+		ghostsEaten[g]=buffer.get()&0xFF;
+
+		Maze maze=_maze(mazeIndex[g]);
+		_checkPillCapacity(maze);
+
+		for(int w=0;w<PILL_WORDS;w++)
+			pills[g*PILL_WORDS+w]=0;
+
+		for(int i=0;i<maze.pillIndices.length;i+=8)
+			pills[g*PILL_WORDS+(i>>>6)]|=(buffer.get()&0xFFL)<<(i&63);
+
+		powerPills[g]=0;
+
+		for(int i=0;i<maze.powerPillIndices.length;i+=8)
+			powerPills[g]|=(buffer.get()&0xFF)<<i;
+
+		for(int w=0;w<PILL_WORDS;w++)
+			pills[g*PILL_WORDS+w]&=_pillMask(maze.pillIndices.length,w);	//ignore the padding of the last byte
+
+		powerPills[g]&=(1<<maze.powerPillIndices.length)-1;
+	}
+
+	/////////////////////////////////////////////////////////////////////////////
+	///////////////////////////  Game-engine   //////////////////////////////////
+	/////////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Advances all games that are not over by one step, as Game.advanceGame() does.
+	 *
+	 * @param pacManMoves The move of Ms Pac-Man for each game
+	 * @param ghostMoves The move of each ghost, indexed by game*NUM_GHOSTS+ghost.ordinal(); if
+	 * null, all ghosts keep their last move like for a null map in Game
+	 */
+	public void advanceGame(MOVE[] pacManMoves,MOVE[] ghostMoves)
+	{
+		_advance(pacManMoves,ghostMoves,true);
+	}
+
+	/**
+	 * Advances all games that are not over by one step, as Game.advanceGameWithoutReverse() does.
+	 *
+	 * @param pacManMoves The move of Ms Pac-Man for each game
+	 * @param ghostMoves The move of each ghost, indexed by game*NUM_GHOSTS+ghost.ordinal(); if
+	 * null, all ghosts keep their last move like for a null map in Game
+	 */
+	public void advanceGameWithoutReverse(MOVE[] pacManMoves,MOVE[] ghostMoves)
+	{
+		_advance(pacManMoves,ghostMoves,false);
+	}
+
+	/**
+	 * Advances a single game of the batch by one step, as Game.advanceGame() does with the
+	 * same arguments. This allows the batch to be driven by the existing ghost controllers.
+	 *
+	 * @param g The index of the game
+	 * @param pacManMove The move supplied by the Ms Pac-Man controller
+	 * @param ghostMoves The moves supplied by the ghosts controller
+	 */
+	public void advanceGame(int g,MOVE pacManMove,EnumMap<GHOST,MOVE> ghostMoves)
+	{
+		for(GHOST ghostType : GHOST.values())
+		{
+			int i=g*NUM_GHOSTS+ghostType.ordinal();
+
+			if(ghostMoves==null)
+				moves[ghostType.ordinal()]=ghostLastMove[i];
+			else if(!ghostMoves.containsKey(ghostType))
+				moves[ghostType.ordinal()]=NEUTRAL;
+			else
+				moves[ghostType.ordinal()]=_ordinal(ghostMoves.get(ghostType));
+		}
+
+		_step(g,_ordinal(pacManMove),true);
+	}
+
+	private void _advance(MOVE[] pacManMoves,MOVE[] ghostMoves,boolean reverse)
+	{
+		for(int g=0;g<size;g++)
+		{
+			if(gameOver[g])
+				continue;
+
+			for(int ghost=0;ghost<NUM_GHOSTS;ghost++)
+				moves[ghost]=ghostMoves==null ? ghostLastMove[g*NUM_GHOSTS+ghost] : _ordinal(ghostMoves[g*NUM_GHOSTS+ghost]);
+
+			_step(g,_ordinal(pacManMoves[g]),reverse);
+		}
+	}
+
+	//one step of game g with the ghost moves in the moves array; -1 stands for a null move
+	private void _step(int g,int pacManMove,boolean reverse)
+	{
+		Maze maze=_maze(mazeIndex[g]);
+		rnd.setState(randomStates[g]);
+
+		//update pac-man
+		pacmanLastMove[g]=_correctPacManDir(g,maze,pacManMove);
+
+		if(pacmanLastMove[g]!=NEUTRAL)
+			pacmanNode[g]=maze.neighbours[pacmanNode[g]*Maze.NUM_MOVES+pacmanLastMove[g]];
+
+		_eatPill(g,maze);
+		_eatPowerPill(g,maze);
+
+		//update ghosts
+		if(!reverse || !_reverseGhosts(g,maze))
+			_updateGhosts(g,maze);
+
+		//update game
+		_feast(g,maze);
+		_updateLairTimes(g,maze);
+
+		if(!hasReceivedExtraLife[g] && score[g]>=EXTRA_LIFE_SCORE)
+		{
+			hasReceivedExtraLife[g]=true;
+			pacmanLives[g]++;
+		}
+
+		totalTime[g]++;
+		currentLevelTime[g]++;
+
+		_checkLevelState(g);
+
+		randomStates[g]=rnd.getState();
+	}
+
+	private int _correctPacManDir(int g,Maze maze,int direction)
+	{
+		int moveMask=maze.moveMasks[pacmanNode[g]];
+
+		if(direction>=0 && (moveMask & 1<<direction)!=0)
+			return direction;
+		else if((moveMask & 1<<pacmanLastMove[g])!=0)
+			return pacmanLastMove[g];
+		else
+			return NEUTRAL;
+	}
+
+	private void _eatPill(int g,Maze maze)
+	{
+		pillWasEaten[g]=false;
+
+		int pillIndex=maze.graph[pacmanNode[g]].pillIndex;
+
+		if(pillIndex>=0)
+		{
+			int word=g*PILL_WORDS+(pillIndex>>>6);
+			long bit=1L<<(pillIndex&63);
+
+			if((pills[word]&bit)!=0)
+			{
+				score[g]+=PILL;
+				pills[word]&=~bit;
+				pillWasEaten[g]=true;
+			}
+		}
+	}
+
+	private void _eatPowerPill(int g,Maze maze)
+	{
+		powerPillWasEaten[g]=false;
+
+		int powerPillIndex=maze.graph[pacmanNode[g]].powerPillIndex;
+
+		if(powerPillIndex>=0 && (powerPills[g]&(1<<powerPillIndex))!=0)
+		{
+			score[g]+=POWER_PILL;
+			ghostEatMultiplier[g]=1;
+			powerPills[g]&=~(1<<powerPillIndex);
+
+			int newEdibleTime=(int)(EDIBLE_TIME*(Math.pow(EDIBLE_TIME_REDUCTION,levelCount[g]%LEVEL_RESET_REDUCTION)));
+
+			for(int i=g*NUM_GHOSTS;i<(g+1)*NUM_GHOSTS;i++)
+				if(ghostLairTime[i]==0)
+					ghostEdibleTime[i]=newEdibleTime;
+				else
+					ghostEdibleTime[i]=0;
+
+			powerPillWasEaten[g]=true;
+		}
+	}
+
+	private boolean _reverseGhosts(int g,Maze maze)
+	{
+		boolean reversed=false;
+		boolean globalReverse=rnd.nextDouble()<GHOST_REVERSAL;
+
+		for(int i=g*NUM_GHOSTS;i<(g+1)*NUM_GHOSTS;i++)
+		{
+			if(currentLevelTime[g]>1 && ghostLairTime[i]==0 && ghostLastMove[i]!=NEUTRAL)
+			{
+				if(powerPillWasEaten[g] || globalReverse)
+				{
+					ghostLastMove[i]=OPPOSITE[ghostLastMove[i]];
+					ghostNode[i]=maze.neighbours[ghostNode[i]*Maze.NUM_MOVES+ghostLastMove[i]];
+					reversed=true;
+					timeOfLastGlobalReversal[g]=totalTime[g];
+				}
+			}
+		}
+
+		return reversed;
+	}
+
+	private void _updateGhosts(int g,Maze maze)
+	{
+		for(int ghost=0;ghost<NUM_GHOSTS;ghost++)
+		{
+			int i=g*NUM_GHOSTS+ghost;
+
+			if(ghostLairTime[i]==0)
+			{
+				if(ghostEdibleTime[i]==0 || ghostEdibleTime[i]%GHOST_SPEED_REDUCTION!=0)
+				{
+					ghostLastMove[i]=_checkGhostDir(i,maze,moves[ghost]);
+					ghostNode[i]=maze.neighbours[ghostNode[i]*Maze.NUM_MOVES+ghostLastMove[i]];
+				}
+			}
+		}
+	}
+
+	private int _checkGhostDir(int i,Maze maze,int direction)
+	{
+		int moveMask=maze.moveMasks[ghostNode[i]];
+
+		if(direction>=0 && (moveMask & 1<<direction)!=0 && direction!=OPPOSITE[ghostLastMove[i]])
+			return direction;
+		else if((moveMask & 1<<ghostLastMove[i])!=0)
+			return ghostLastMove[i];
+		else
+		{
+			MOVE[] possibleMoves=maze.possibleMoves[ghostNode[i]*Maze.NUM_MOVES+ghostLastMove[i]];
+			return possibleMoves[rnd.nextInt(possibleMoves.length)].ordinal();
+		}
+	}
+
+	private void _feast(int g,Maze maze)
+	{
+		pacmanWasEaten[g]=false;
+		ghostsEaten[g]=0;
+
+		for(int ghost=0;ghost<NUM_GHOSTS;ghost++)
+		{
+			int i=g*NUM_GHOSTS+ghost;
+			int distance=_distance(maze,pacmanNode[g],ghostNode[i]);
+
+			if(distance<=EAT_DISTANCE && distance!=-1)
+			{
+				if(ghostEdibleTime[i]>0)									//pac-man eats ghost
+				{
+					score[g]+=GHOST_EAT_SCORE*ghostEatMultiplier[g];
+					ghostEatMultiplier[g]*=2;
+					ghostEdibleTime[i]=0;
+					ghostLairTime[i]=(int)(COMMON_LAIR_TIME*(Math.pow(LAIR_REDUCTION,levelCount[g]%LEVEL_RESET_REDUCTION)));
+					ghostNode[i]=maze.lairNodeIndex;
+					ghostLastMove[i]=NEUTRAL;
+
+					ghostsEaten[g]|=1<<ghost;
+				}
+				else														//ghost eats pac-man
+				{
+					pacmanLives[g]--;
+					pacmanWasEaten[g]=true;
+
+					if(pacmanLives[g]<=0)
+						gameOver[g]=true;
+					else
+						_levelReset(g,maze);
+
+					return;
+				}
+			}
+		}
+
+		for(int i=g*NUM_GHOSTS;i<(g+1)*NUM_GHOSTS;i++)
+			if(ghostEdibleTime[i]>0)
+				ghostEdibleTime[i]--;
+	}
+
+	private void _updateLairTimes(int g,Maze maze)
+	{
+		for(int i=g*NUM_GHOSTS;i<(g+1)*NUM_GHOSTS;i++)
+			if(ghostLairTime[i]>0)
+				if(--ghostLairTime[i]==0)
+					ghostNode[i]=maze.initialGhostNodeIndex;
+	}
+
+	private void _checkLevelState(int g)
+	{
+		//put a cap on the total time a game can be played for
+		if(totalTime[g]+1>MAX_TIME)
+		{
+			gameOver[g]=true;
+			score[g]+=pacmanLives[g]*AWARD_LIFE_LEFT;
+		}
+		//if all pills have been eaten or the time is up...
+		else if((_pillsEmpty(g) && powerPills[g]==0) || currentLevelTime[g]>=LEVEL_LIMIT)
+			_newLevelReset(g);
+	}
+
+	private void _newLevelReset(int g)
+	{
+		mazeIndex[g]=(mazeIndex[g]+1)%NUM_MAZES;
+		levelCount[g]++;
+
+		Maze maze=_maze(mazeIndex[g]);
+		Game._prefetchMaze((mazeIndex[g]+1)%NUM_MAZES);
+
+		currentLevelTime[g]=0;
+		ghostEatMultiplier[g]=1;
+
+		_setPills(g,maze);
+		_levelReset(g,maze);
+	}
+
+	private void _levelReset(int g,Maze maze)
+	{
+		ghostEatMultiplier[g]=1;
+
+		_initGhosts(g,maze);
+
+		pacmanNode[g]=maze.initialPacManNodeIndex;
+		pacmanLastMove[g]=LEFT;
+	}
+
+	private void _initGhosts(int g,Maze maze)
+	{
+		for(GHOST ghostType : GHOST.values())
+		{
+			int i=g*NUM_GHOSTS+ghostType.ordinal();
+
+			ghostNode[i]=maze.lairNodeIndex;
+			ghostEdibleTime[i]=0;
+			ghostLairTime[i]=(int)(ghostType.initialLairTime*(Math.pow(LAIR_REDUCTION,levelCount[g]%LEVEL_RESET_REDUCTION)));
+			ghostLastMove[i]=NEUTRAL;
+		}
+	}
+
+	private void _setPills(int g,Maze maze)
+	{
+		_checkPillCapacity(maze);
+
+		for(int w=0;w<PILL_WORDS;w++)
+			pills[g*PILL_WORDS+w]=_pillMask(maze.pillIndices.length,w);
+
+		powerPills[g]=(1<<maze.powerPillIndices.length)-1;
+	}
+
+	private boolean _pillsEmpty(int g)
+	{
+		for(int w=g*PILL_WORDS;w<(g+1)*PILL_WORDS;w++)
+			if(pills[w]!=0)
+				return false;
+
+		return true;
+	}
+
+	/////////////////////////////////////////////////////////////////////////////
+	/////////////////////////////  Query methods  ///////////////////////////////
+	/////////////////////////////////////////////////////////////////////////////
+
+	public boolean gameOver(int g)
+	{
+		return gameOver[g];
+	}
+
+	public int getScore(int g)
+	{
+		return score[g];
+	}
+
+	public int getMazeIndex(int g)
+	{
+		return mazeIndex[g];
+	}
+
+	public int getCurrentLevel(int g)
+	{
+		return levelCount[g];
+	}
+
+	public int getCurrentLevelTime(int g)
+	{
+		return currentLevelTime[g];
+	}
+
+	public int getTotalTime(int g)
+	{
+		return totalTime[g];
+	}
+
+	public int getPacmanCurrentNodeIndex(int g)
+	{
+		return pacmanNode[g];
+	}
+
+	public MOVE getPacmanLastMoveMade(int g)
+	{
+		return MOVES[pacmanLastMove[g]];
+	}
+
+	public int getPacmanNumberOfLivesRemaining(int g)
+	{
+		return pacmanLives[g];
+	}
+
+	public boolean wasPacManEaten(int g)
+	{
+		return pacmanWasEaten[g];
+	}
+
+	public int getGhostCurrentNodeIndex(int g,GHOST ghostType)
+	{
+		return ghostNode[g*NUM_GHOSTS+ghostType.ordinal()];
+	}
+
+	public int getGhostEdibleTime(int g,GHOST ghostType)
+	{
+		return ghostEdibleTime[g*NUM_GHOSTS+ghostType.ordinal()];
+	}
+
+	public int getGhostLairTime(int g,GHOST ghostType)
+	{
+		return ghostLairTime[g*NUM_GHOSTS+ghostType.ordinal()];
+	}
+
+	public MOVE getGhostLastMoveMade(int g,GHOST ghostType)
+	{
+		return MOVES[ghostLastMove[g*NUM_GHOSTS+ghostType.ordinal()]];
+	}
+
+	public boolean isPillStillAvailable(int g,int pillIndex)
+	{
+		return (pills[g*PILL_WORDS+(pillIndex>>>6)]&(1L<<(pillIndex&63)))!=0;
+	}
+
+	public boolean isPowerPillStillAvailable(int g,int powerPillIndex)
+	{
+		return (powerPills[g]&(1<<powerPillIndex))!=0;
+	}
+
+	public int getNumberOfActivePills(int g)
+	{
+		int count=0;
+
+		for(int w=g*PILL_WORDS;w<(g+1)*PILL_WORDS;w++)
+			count+=Long.bitCount(pills[w]);
+
+		return count;
+	}
+
+	public int getNumberOfActivePowerPills(int g)
+	{
+		return Integer.bitCount(powerPills[g]);
+	}
+
+	/**
+	 * Returns the number of games in the batch that are not over yet.
+	 *
+	 * @return The number of running games
+	 */
+	public int getNumberOfRunningGames()
+	{
+		int count=0;
+
+		for(int g=0;g<size;g++)
+			if(!gameOver[g])
+				count++;
+
+		return count;
+	}
+
+	/////////////////////////////////////////////////////////////////////////////
+	////////////////////////////////  Helpers  //////////////////////////////////
+	/////////////////////////////////////////////////////////////////////////////
+
+	private Maze _maze(int index)
+	{
+		Maze maze=mazes[index];
+
+		if(maze==null)
+			maze=mazes[index]=Game.getMaze(index);
+
+		return maze;
+	}
+
+	private ByteBuffer _buffer()
+	{
+		if(buffer==null)
+			buffer=ByteBuffer.allocate(1024);
+
+		buffer.clear();
+
+		return buffer;
+	}
+
+	//same as Game.getShortestPathDistance
+	private static int _distance(Maze maze,int fromNodeIndex,int toNodeIndex)
+	{
+		if(fromNodeIndex==toNodeIndex)
+			return 0;
+		else if(fromNodeIndex<toNodeIndex)
+			return maze.shortestPathDistances.get(((toNodeIndex*(toNodeIndex+1))/2)+fromNodeIndex);
+		else
+			return maze.shortestPathDistances.get(((fromNodeIndex*(fromNodeIndex+1))/2)+toNodeIndex);
+	}
+
+	private static int _ordinal(MOVE move)
+	{
+		return move==null ? -1 : move.ordinal();
+	}
+
+	//the bits of pill word w that stand for pills of the maze
+	private static long _pillMask(int numPills,int w)
+	{
+		int bits=numPills-w*64;
+
+		return bits<=0 ? 0 : bits>=64 ? -1L : (1L<<bits)-1;
+	}
+
+	private static void _checkPillCapacity(Maze maze)
+	{
+		if(maze.pillIndices.length>PILL_WORDS*64 || maze.powerPillIndices.length>Integer.SIZE-1)
+			throw new IllegalStateException("too many pills in maze "+maze.name+" for a game batch");
+	}
+}
@@ -0,0 +1,80 @@
+package pacman.game;
+
+/**
+ * A pool of game instances owned by the calling thread. A forward search acquires a copy of a
+ * game state, advances it and releases it again once done. Released games are overwritten by
+ * later acquisitions using Game.copyInto, so a search that keeps its number of live copies
+ * bounded stops allocating games once the pool has warmed up.
+ *
+ * Games must be released by the thread that acquired them and must not be used after release.
+ */
+public final class GamePool
+{
+	private static final int MAX_POOLED_GAMES=4096;		//released games beyond this are left to the garbage collector
+
+	private static final ThreadLocal<GamePool> pools=new ThreadLocal<GamePool>()
+	{
+		@Override
+		protected GamePool initialValue()
+		{
+			return new GamePool();
+		}
+	};
+
+	private Game[] free=new Game[16];
+	private int size;
+
+	private GamePool(){}
+
+	/**
+	 * Returns an exact copy of the source game, re-using a released game of the calling thread
+	 * if there is one.
+	 *
+	 * @param source The game to copy
+	 * @return The copy
+	 */
+	public static Game acquire(Game source)
+	{
+		GamePool pool=pools.get();
+
+		if(pool.size==0)
+			return source.copy();
+
+		Game game=pool.free[--pool.size];
+		pool.free[pool.size]=null;
+
+		return source.copyInto(game);
+	}
+
+	/**
+	 * Returns a game obtained from acquire to the pool of the calling thread.
+	 *
+	 * @param game The game which is no longer used
+	 */
+	public static void release(Game game)
+	{
+		GamePool pool=pools.get();
+
+		if(pool.size==pool.free.length)
+		{
+			if(pool.size>=MAX_POOLED_GAMES)
+				return;
+
+			Game[] free=new Game[pool.size*2];
+			System.arraycopy(pool.free,0,free,0,pool.size);
+			pool.free=free;
+		}
+
+		pool.free[pool.size++]=game;
+	}
+
+	/**
+	 * Returns the number of released games the calling thread currently holds.
+	 *
+	 * @return The number of pooled games
+	 */
+	public static int getNumberOfPooledGames()
+	{
+		return pools.get().size;
+	}
+}
@@ -1,195 +1,279 @@
 package pacman.game.internal;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.EnumMap;
-import java.util.PriorityQueue;
+import java.util.Arrays;
 
 import pacman.game.Game;
 import pacman.game.Constants.MOVE;
 
 /*
- * This class is used to compute the shortest path for the ghosts: as these may not reverse, one cannot use 
+ * This class is used to compute the shortest path for the ghosts: as these may not reverse, one cannot use
  * a simple look-up table. Instead, we use the pre-computed shortest path distances as an admissable
  * heuristic. Although AStar needs to be run every time a path is to be found, it is very quick and does
  * not expand too many nodes beyond those on the optimal path.
+ *
+ * The graph itself is immutable once created. All search state is kept in primitive arrays owned by the
+ * calling thread, so several threads may compute paths on the same maze at the same time without locking.
  */
 public class AStar
 {
-	private N[] graph;
-	
+	private static final MOVE[] MOVES=MOVE.values();
+
+	private int[][] adjacentNodes;		//neighbours of each node, in the order of MOVE
+	private int[][] adjacentMoves;		//ordinal of the move leading to each neighbour
+
+	private final ThreadLocal<Search> searches=new ThreadLocal<Search>()
+	{
+		@Override
+		protected Search initialValue()
+		{
+			return new Search(adjacentNodes.length);
+		}
+	};
+
 	public void createGraph(Node[] nodes)
 	{
-		graph=new N[nodes.length];
-		
-		//create graph
-		for(int i=0;i<nodes.length;i++)
-			graph[i]=new N(nodes[i].nodeIndex);
-		
+		adjacentNodes=new int[nodes.length][];
+		adjacentMoves=new int[nodes.length][];
+
 		//add neighbours
 		for(int i=0;i<nodes.length;i++)
-		{	
-			EnumMap<MOVE,Integer> neighbours=nodes[i].neighbourhood;
-			MOVE[] moves=MOVE.values();
-			
-			for(int j=0;j<moves.length;j++)
-				if(neighbours.containsKey(moves[j]))
-					graph[i].adj.add(new E(graph[neighbours.get(moves[j])],moves[j],1));	
+		{
+			int numNeighbours=0;
+
+			adjacentNodes[i]=new int[nodes[i].numNeighbouringNodes];
+			adjacentMoves[i]=new int[nodes[i].numNeighbouringNodes];
+
+			for(int j=0;j<MOVES.length;j++)
+			{
+				Integer neighbour=nodes[i].neighbourhood.get(MOVES[j]);
+
+				if(neighbour!=null)
+				{
+					adjacentNodes[i][numNeighbours]=neighbour;
+					adjacentMoves[i][numNeighbours]=j;
+					numNeighbours++;
+				}
+			}
 		}
 	}
-	
-	public synchronized int[] computePathsAStar(int s, int t, MOVE lastMoveMade, Game game)
-    {	
-		N start=graph[s];
-		N target=graph[t];
-		
-        PriorityQueue<N> open = new PriorityQueue<N>();
-        ArrayList<N> closed = new ArrayList<N>();
-
-        start.g = 0;
-        start.h = game.getShortestPathDistance(start.index, target.index);
-
-        start.reached=lastMoveMade;
-        
-        open.add(start);
-
-        while(!open.isEmpty())
-        {
-            N currentNode = open.poll();
-            closed.add(currentNode);
-            
-            if (currentNode.isEqual(target))
-                break;
-
-            for(E next : currentNode.adj)
-            {
-            	if(next.move!=currentNode.reached.opposite())
-            	{
-	                double currentDistance = next.cost;
-	
-	                if (!open.contains(next.node) && !closed.contains(next.node))
-	                {
-	                    next.node.g = currentDistance + currentNode.g;
-	                    next.node.h = game.getShortestPathDistance(next.node.index, target.index);
-	                    next.node.parent = currentNode;
-	                    
-	                    next.node.reached=next.move;
-	
-	                    open.add(next.node);
-	                }
-	                else if (currentDistance + currentNode.g < next.node.g)
-	                {
-	                    next.node.g = currentDistance + currentNode.g;
-	                    next.node.parent = currentNode;
-	                    
-	                    next.node.reached=next.move;
-	
-	                    if (open.contains(next.node))
-	                        open.remove(next.node);
-	
-	                    if (closed.contains(next.node))
-	                        closed.remove(next.node);
-	
-	                    open.add(next.node);
-	                }
-	            }
-            }
-        }
-
-        return extractPath(target);
+
+	public int[] computePathsAStar(int s, int t, MOVE lastMoveMade, Game game)
+    {
+		Search search=searches.get();
+		search.begin();
+
+		search.g[s]=0;
+		search.h[s]=game.getShortestPathDistance(s,t);
+		search.parent[s]=-1;
+		search.reached[s]=lastMoveMade.ordinal();
+		search.offer(s);
+
+		while(search.size>0)
+		{
+			int currentNode=search.poll();
+			search.state[currentNode]=search.closedStamp;
+
+			if(currentNode==t)
+				break;
+
+			int[] nextNodes=adjacentNodes[currentNode];
+			int[] nextMoves=adjacentMoves[currentNode];
+
+			for(int i=0;i<nextNodes.length;i++)
+			{
+				if(MOVES[nextMoves[i]]!=MOVES[search.reached[currentNode]].opposite())
+				{
+					int next=nextNodes[i];
+					int distance=search.g[currentNode]+1;
+
+					if(!search.isOpen(next) && !search.isClosed(next))
+					{
+						search.g[next]=distance;
+						search.h[next]=game.getShortestPathDistance(next,t);
+						search.parent[next]=currentNode;
+						search.reached[next]=nextMoves[i];
+						search.offer(next);
+					}
+					else if(distance<search.g[next])
+					{
+						search.g[next]=distance;
+						search.parent[next]=currentNode;
+						search.reached[next]=nextMoves[i];
+
+						if(search.isOpen(next))
+							search.remove(next);
+
+						search.offer(next);
+					}
+				}
+			}
+		}
+
+		return search.extractPath(t);
     }
-	
-	public synchronized int[] computePathsAStar(int s, int t, Game game)
-    {	
+
+	public int[] computePathsAStar(int s, int t, Game game)
+    {
 		return computePathsAStar(s, t, MOVE.NEUTRAL, game);
     }
 
-    private synchronized int[] extractPath(N target)
+	/*
+	 * The search state is private to each call, so there is nothing left to reset. Kept for compatibility.
+	 */
+    public void resetGraph()
     {
-    	ArrayList<Integer> route = new ArrayList<Integer>();
-        N current = target;
-        route.add(current.index);
-
-        while (current.parent != null)
-        {
-            route.add(current.parent.index);
-            current = current.parent;
-        }
-        
-        Collections.reverse(route);
-
-        int[] routeArray=new int[route.size()];
-        
-        for(int i=0;i<routeArray.length;i++)
-        	routeArray[i]=route.get(i);
-        
-        return routeArray;
     }
-    
-    public void resetGraph()
+
+    /*
+     * The state of a single search, re-used by all searches of the owning thread. The state of a node is
+     * only valid if it carries the stamp of the current search, so starting a new search is O(1). The
+     * open list is a binary heap on f=g+h that also tracks the position of each node, so membership tests
+     * and removals don't need to scan the heap. It orders nodes exactly like java.util.PriorityQueue.
+     */
+    private static final class Search
     {
-    	for(N node : graph)
+    	final int[] g, h, parent, reached, state, heap, position;
+    	int size, openStamp, closedStamp;
+
+    	Search(int numNodes)
     	{
-    		node.g=0;
-    		node.h=0;
-    		node.parent=null;
-    		node.reached=null;
+    		g=new int[numNodes];
+    		h=new int[numNodes];
+    		parent=new int[numNodes];
+    		reached=new int[numNodes];
+    		state=new int[numNodes];
+    		heap=new int[numNodes];
+    		position=new int[numNodes];
     	}
-    }
-}
 
-class N implements Comparable<N>
-{
-    public N parent;
-    public double g, h;
-    public boolean visited = false;
-    public ArrayList<E> adj;
-    public int index;
-    public MOVE reached=null;
-
-    public N(int index)
-    {
-        adj = new ArrayList<E>();
-        this.index=index;
-    }
+    	void begin()
+    	{
+    		size=0;
 
-    public N(double g, double h)
-    {
-        this.g = g;
-        this.h = h;
-    }
+    		//two fresh stamps per search; the state of all other nodes is stale
+    		if(closedStamp>=Integer.MAX_VALUE-2)
+    		{
+    			Arrays.fill(state,0);
+    			closedStamp=0;
+    		}
 
-    public boolean isEqual(N another)
-    {
-        return index == another.index;
-    }
+    		openStamp=closedStamp+1;
+    		closedStamp=closedStamp+2;
+    	}
 
-    public String toString()
-    {
-        return ""+index;
-    }
+    	boolean isOpen(int node)
+    	{
+    		return state[node]==openStamp;
+    	}
 
-	public int compareTo(N another)
-	{
-      if ((g + h) < (another.g + another.h))
-    	  return -1;
-      else  if ((g + h) > (another.g + another.h))
-    	  return 1;
-		
-		return 0;
-	}
-}
+    	boolean isClosed(int node)
+    	{
+    		return state[node]==closedStamp;
+    	}
 
-class E
-{
-	public N node;
-	public MOVE move;
-	public double cost;
-	
-	public E(N node,MOVE move,double cost)
-	{
-		this.node=node;
-		this.move=move;
-		this.cost=cost;
-	}
-}
\ No newline at end of file
+    	int parentOf(int node)
+    	{
+    		return state[node]==openStamp || state[node]==closedStamp ? parent[node] : -1;
+    	}
+
+    	int[] extractPath(int target)
+    	{
+    		int length=1;
+
+    		for(int node=parentOf(target);node!=-1;node=parentOf(node))
+    			length++;
+
+    		int[] route=new int[length];
+
+    		for(int node=target;node!=-1;node=parentOf(node))
+    			route[--length]=node;
+
+    		return route;
+    	}
+
+    	void offer(int node)
+    	{
+    		state[node]=openStamp;
+    		siftUp(size++,node);
+    	}
+
+    	int poll()
+    	{
+    		int result=heap[0];
+    		int last=heap[--size];
+
+    		if(size>0)
+    			siftDown(0,last);
+
+    		return result;
+    	}
+
+    	void remove(int node)
+    	{
+    		int i=position[node];
+    		int s=--size;
+
+    		if(s!=i)
+    		{
+    			int moved=heap[s];
+    			siftDown(i,moved);
+
+    			if(heap[i]==moved)
+    				siftUp(i,moved);
+    		}
+
+    		state[node]=0;
+    	}
+
+    	private int f(int node)
+    	{
+    		return g[node]+h[node];
+    	}
+
+    	private void siftUp(int k,int node)
+    	{
+    		while(k>0)
+    		{
+    			int parentIndex=(k-1)>>>1;
+    			int e=heap[parentIndex];
+
+    			if(f(node)>=f(e))
+    				break;
+
+    			place(k,e);
+    			k=parentIndex;
+    		}
+
+    		place(k,node);
+    	}
+
+    	private void siftDown(int k,int node)
+    	{
+    		int half=size>>>1;
+
+    		while(k<half)
+    		{
+    			int child=(k<<1)+1;
+    			int c=heap[child];
+    			int right=child+1;
+
+    			if(right<size && f(c)>f(heap[right]))
+    				c=heap[child=right];
+
+    			if(f(node)<=f(c))
+    				break;
+
+    			place(k,c);
+    			k=child;
+    		}
+
+    		place(k,node);
+    	}
+
+    	private void place(int k,int node)
+    	{
+    		heap[k]=node;
+    		position[node]=k;
+    	}
+    }
+}
@@ -0,0 +1,94 @@
+package pacman.game.internal;
+
+/*
+ * The pseudo-random number generator of a single game. It produces exactly the same sequences as java.util.Random
+ * for the same seed, but keeps its state in a plain long: it is not shared between threads, so it needs no atomic
+ * updates, and its state can be read and restored to fork or rewind a game.
+ */
+public final class GameRandom
+{
+	private static final long MULTIPLIER=0x5DEECE66DL;
+	private static final long ADDEND=0xBL;
+	private static final long MASK=(1L<<48)-1;
+	private static final double DOUBLE_UNIT=0x1.0p-53;
+	private static final float FLOAT_UNIT=0x1.0p-24f;
+
+	private long state;
+
+	public GameRandom(long seed)
+	{
+		setSeed(seed);
+	}
+
+	private GameRandom(){}
+
+	/*
+	 * Sets the seed exactly like java.util.Random.setSeed.
+	 */
+	public void setSeed(long seed)
+	{
+		state=(seed^MULTIPLIER)&MASK;
+	}
+
+	/*
+	 * Returns the internal state, to be restored later with setState.
+	 */
+	public long getState()
+	{
+		return state;
+	}
+
+	public void setState(long state)
+	{
+		this.state=state;
+	}
+
+	public GameRandom copy()
+	{
+		GameRandom copy=new GameRandom();
+		copy.state=state;
+
+		return copy;
+	}
+
+	private int next(int bits)
+	{
+		state=(state*MULTIPLIER+ADDEND)&MASK;
+
+		return (int)(state>>>(48-bits));
+	}
+
+	public int nextInt()
+	{
+		return next(32);
+	}
+
+	public int nextInt(int bound)
+	{
+		if(bound<=0)
+			throw new IllegalArgumentException("bound must be positive");
+
+		int r=next(31);
+		int m=bound-1;
+
+		if((bound&m)==0)	//power of two
+			r=(int)((bound*(long)r)>>31);
+		else
+		{
+			for(int u=r;u-(r=u%bound)+m<0;u=next(31))
+				;
+		}
+
+		return r;
+	}
+
+	public float nextFloat()
+	{
+		return next(24)*FLOAT_UNIT;
+	}
+
+	public double nextDouble()
+	{
+		return (((long)(next(26))<<27)+next(27))*DOUBLE_UNIT;
+	}
+}
@@ -25,4 +25,16 @@ public final class Ghost
 	{
 		return new Ghost(type, currentNodeIndex, edibleTime, lairTime, lastMoveMade);		
 	}
+	
+	/*
+	 * Overwrites this object with the values of the other one.
+	 */
+	public void copyFrom(Ghost other)
+	{
+		this.type=other.type;
+		this.currentNodeIndex=other.currentNodeIndex;
+		this.edibleTime=other.edibleTime;
+		this.lairTime=other.lairTime;
+		this.lastMoveMade=other.lastMoveMade;
+	}
 }
\ No newline at end of file
@@ -1,11 +1,19 @@
 package pacman.game.internal;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 //import java.util.EnumMap;
-//import pacman.game.Constants.MOVE;
+import pacman.game.Constants.MOVE;
 
 import static pacman.game.Constants.*;
 
@@ -17,10 +25,19 @@ import static pacman.game.Constants.*;
  */
 public final class Maze
 {
+	public static final int NUM_MOVES=MOVE.values().length;							//slots per node in the compact graph (NEUTRAL never has a neighbour)
+	
+	private static final int DISTANCES_MAGIC=0x504D4453;								//"PMDS", start of the binary distance files
+	private static final int DISTANCES_HEADER_LENGTH=24;								//magic, number of distances, length and time of the text file
+	
 	public AStar astar;
-	public int[] shortestPathDistances,pillIndices,powerPillIndices,junctionIndices;	//Information for the controllers
+	public int[] pillIndices,powerPillIndices,junctionIndices;							//Information for the controllers
+	public ShortBuffer shortestPathDistances;											//Triangular table of all shortest path distances
 	public int initialPacManNodeIndex,lairNodeIndex,initialGhostNodeIndex;				//Maze-specific information
 	public Node[] graph;																//The actual maze, stored as a graph (set of nodes)
+	public int[] neighbours,moveMasks;													//Compact graph: neighbours[node*NUM_MOVES+move], bit move set in moveMasks[node]
+	public MOVE[][] possibleMoves;														//possibleMoves[node*NUM_MOVES+lastMove], as Node.allPossibleMoves
+	public int[][] neighbouringNodes;													//neighbouringNodes[node*NUM_MOVES+lastMove], as Node.allNeighbouringNodes
 	public String name;																	//Name of the Maze
 	
 	/*
@@ -34,6 +51,7 @@ public final class Maze
 	{
 		loadNodes(nodeNames[index]);
 		loadDistances(distNames[index]);
+		createCompactGraph();
 		
 		//create A* graph for shortest paths for the ghosts
 		astar=new AStar();
@@ -95,33 +113,204 @@ public final class Maze
         }
 	}
 	
+	/*
+	 * Flattens the neighbourhoods of all nodes into primitive arrays indexed by node*NUM_MOVES+move, so the game
+	 * can step without looking up boxed values in the EnumMaps of the nodes. A missing neighbour is stored as -1.
+	 */
+	private void createCompactGraph()
+	{
+		MOVE[] moves=MOVE.values();
+		
+		this.neighbours=new int[graph.length*NUM_MOVES];
+		this.moveMasks=new int[graph.length];
+		this.possibleMoves=new MOVE[graph.length*NUM_MOVES][];
+		this.neighbouringNodes=new int[graph.length*NUM_MOVES][];
+		
+		for(int i=0;i<graph.length;i++)
+		{
+			for(MOVE move : moves)
+			{
+				int slot=i*NUM_MOVES+move.ordinal();
+				Integer neighbour=graph[i].neighbourhood.get(move);
+				
+				if(neighbour!=null)
+				{
+					neighbours[slot]=neighbour;
+					moveMasks[i]|=1<<move.ordinal();
+				}
+				else
+					neighbours[slot]=-1;
+				
+				possibleMoves[slot]=graph[i].allPossibleMoves.get(move);
+				neighbouringNodes[slot]=graph[i].allNeighbouringNodes.get(move);
+			}
+		}
+	}
+	
 	/*
 	 * Loads the shortest path distances which have been pre-computed. The data contains the shortest distance from
 	 * any node in the maze to any other node. Since the graph is symmetric, the symmetries have been removed to preserve
 	 * memory and all distances are stored in a 1D array; they are looked-up using getDistance(-). 
+	 * 
+	 * The distances are kept as 16-bit values in a memory-mapped binary file next to the text file. The binary file is
+	 * generated from the text file the first time the maze is loaded, and again whenever its header does not match the
+	 * text file; if it cannot be written, the distances are kept in memory instead. Nothing is written if the text
+	 * file cannot be parsed.
 	 */
 	private void loadDistances(String fileName)
 	{
-		this.shortestPathDistances=new int[((graph.length*(graph.length-1))/2)+graph.length];
+		int numDistances=((graph.length*(graph.length-1))/2)+graph.length;
+		File textFile=new File(pathDistances+System.getProperty("file.separator")+fileName);
+		File binaryFile=new File(textFile.getPath()+".bin");
 		
-        try
-        {
-        	BufferedReader br=new BufferedReader(new InputStreamReader(new FileInputStream(pathDistances+System.getProperty("file.separator")+fileName)));
-            String input=br.readLine();
-            
-            int index=0;
-            
-            while(input!=null)
-            {	
-            	shortestPathDistances[index++]=Integer.parseInt(input);
-                input=br.readLine();
-            }
-            
-            br.close();
-        }
-        catch(IOException ioe)
-        {
-            ioe.printStackTrace();
-        }
+		ByteBuffer header=_distancesHeader(textFile,numDistances);
+		
+		try
+		{
+			if(!_hasHeader(binaryFile,header,numDistances))
+			{
+				ByteBuffer distances=parseDistances(textFile,numDistances);
+				
+				if(!writeDistances(binaryFile,header,distances))
+				{
+					this.shortestPathDistances=distances.asShortBuffer();
+					return;
+				}
+			}
+			
+			this.shortestPathDistances=mapDistances(binaryFile,numDistances);
+		}
+		catch(IOException ioe)
+		{
+			//nothing is cached, so the error shows again on the next run
+			ioe.printStackTrace();
+			this.shortestPathDistances=ShortBuffer.allocate(numDistances);
+		}
+	}
+	
+	//The header identifies the text file the binary file was generated from, so a stale or foreign file is regenerated
+	private static ByteBuffer _distancesHeader(File textFile,int numDistances)
+	{
+		ByteBuffer header=ByteBuffer.allocate(DISTANCES_HEADER_LENGTH);
+		header.putInt(DISTANCES_MAGIC);
+		header.putInt(numDistances);
+		header.putLong(textFile.length());
+		header.putLong(textFile.lastModified());
+		header.flip();
+		
+		return header;
+	}
+	
+	//Checks that the binary file has the expected header and is long enough for all distances
+	private static boolean _hasHeader(File binaryFile,ByteBuffer header,int numDistances) throws IOException
+	{
+		if(binaryFile.length()!=DISTANCES_HEADER_LENGTH+numDistances*2L)
+			return false;
+		
+		RandomAccessFile file=new RandomAccessFile(binaryFile,"r");
+		
+		try
+		{
+			byte[] stored=new byte[DISTANCES_HEADER_LENGTH];
+			file.readFully(stored);
+			
+			return ByteBuffer.wrap(stored).equals(header);
+		}
+		finally
+		{
+			file.close();
+		}
+	}
+	
+	//Parses the text file of the distances into a buffer of 16-bit values; the file must have one distance per line
+	private ByteBuffer parseDistances(File textFile,int numDistances) throws IOException
+	{
+		ByteBuffer distances=ByteBuffer.allocate(numDistances*2);
+		BufferedReader br=new BufferedReader(new InputStreamReader(new FileInputStream(textFile)));
+		
+		try
+		{
+			String input=br.readLine();
+			int index=0;
+			
+			while(input!=null)
+			{
+				if(index==numDistances)
+					throw new IOException(textFile+" has more than "+numDistances+" distances");
+				
+				try
+				{
+					distances.putShort(2*index++,(short)Integer.parseInt(input));		//distances are at most a few hundred nodes
+				}
+				catch(NumberFormatException nfe)
+				{
+					throw new IOException(textFile+": invalid distance in line "+index,nfe);
+				}
+				
+				input=br.readLine();
+			}
+			
+			if(index!=numDistances)
+				throw new IOException(textFile+" has "+index+" distances instead of "+numDistances);
+		}
+		finally
+		{
+			br.close();
+		}
+		
+		return distances;
+	}
+	
+	//Writes the header and the distances to a temporary file which is then moved in place, so a concurrent reader never sees a partial file
+	private boolean writeDistances(File binaryFile,ByteBuffer header,ByteBuffer distances)
+	{
+		File tmpFile=null;
+		
+		try
+		{
+			tmpFile=File.createTempFile(binaryFile.getName(),".tmp",binaryFile.getAbsoluteFile().getParentFile());
+			FileOutputStream out=new FileOutputStream(tmpFile);
+			
+			try
+			{
+				FileChannel channel=out.getChannel();
+				ByteBuffer data=distances.duplicate();
+				data.clear();
+				
+				channel.write(header.duplicate());
+				while(data.hasRemaining())
+					channel.write(data);
+			}
+			finally
+			{
+				out.close();
+			}
+			
+			Files.move(tmpFile.toPath(),binaryFile.toPath(),StandardCopyOption.REPLACE_EXISTING,StandardCopyOption.ATOMIC_MOVE);
+			return true;
+		}
+		catch(IOException ioe)
+		{
+			if(tmpFile!=null)
+				tmpFile.delete();
+			
+			return false;
+		}
+	}
+	
+	//Maps the binary file of the distances read-only into memory
+	private ShortBuffer mapDistances(File binaryFile,int numDistances) throws IOException
+	{
+		RandomAccessFile file=new RandomAccessFile(binaryFile,"r");
+		
+		try
+		{
+			FileChannel channel=file.getChannel();
+			return channel.map(FileChannel.MapMode.READ_ONLY,DISTANCES_HEADER_LENGTH,numDistances*2L).asShortBuffer();
+		}
+		finally
+		{
+			file.close();		//the mapping stays valid after the channel is closed
+		}
 	}
-}
\ No newline at end of file
+}
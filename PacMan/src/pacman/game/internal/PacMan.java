@@ -23,4 +23,15 @@ public final class PacMan
 	{
 		return new PacMan(currentNodeIndex, lastMoveMade, numberOfLivesRemaining, hasReceivedExtraLife);
 	}
+	
+	/*
+	 * Overwrites this object with the values of the other one.
+	 */
+	public void copyFrom(PacMan other)
+	{
+		this.currentNodeIndex=other.currentNodeIndex;
+		this.lastMoveMade=other.lastMoveMade;
+		this.numberOfLivesRemaining=other.numberOfLivesRemaining;
+		this.hasReceivedExtraLife=other.hasReceivedExtraLife;
+	}
 }
\ No newline at end of file
@@ -3,7 +3,6 @@ package pacman.game.internal;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.EnumMap;
-import java.util.HashMap;
 import java.util.Set;
 import pacman.game.Constants.MOVE;
 import pacman.game.Game;
@@ -24,28 +23,50 @@ import pacman.game.Game;
  */
 public class PathsCache 
 {	
-	public HashMap<Integer, Integer> junctionIndexConverter;
+	private static final MOVE[] MOVES=MOVE.values();
+	private static final int NUM_MOVES=MOVES.length;
+	
+	public int[] junctionIndexConverter;				//junction id of each node index, -1 if the node is not a junction
 	public DNode[] nodes;
 	public Junction[] junctions;
 	public Game game;
+	
+	//junctionDistances[from][to*NUM_MOVES+move] is the length of the path between the two junctions taking move first, -1 if there is none
+	private int[][] junctionDistances;
 		
  	public PathsCache(int mazeIndex)
 	{
-		junctionIndexConverter = new HashMap<Integer, Integer>();
-		
 		this.game=new Game(0,mazeIndex);
 		Maze m = game.getCurrentMaze();
 		
 		int[] jctIndices = m.junctionIndices;
 		
+		junctionIndexConverter = new int[m.graph.length];
+		Arrays.fill(junctionIndexConverter, -1);
+		
 		for (int i = 0; i < jctIndices.length; i++)
-			junctionIndexConverter.put(jctIndices[i], i);
+			junctionIndexConverter[jctIndices[i]] = i;
 
 		nodes = assignJunctionsToNodes(game);
 		junctions = junctionDistances(game);
 		
+		for(DNode node : nodes)
+			for(JunctionData junction : node.closestJunctions)
+				if(junction.reversePath.length>0)
+					junction.reverseFirstMove=game.getMoveToMakeToReachDirectNeighbour(junction.nodeID, junction.reversePath[0]);
+		
 		for(int i=0;i<junctions.length;i++)
 			junctions[i].computeShortestPaths();
+		
+		junctionDistances = new int[junctions.length][junctions.length*NUM_MOVES];
+		
+		for(int i=0;i<junctions.length;i++)
+			for(int j=0;j<junctions.length;j++)
+				for(MOVE move : MOVE.values())
+				{
+					int[] path=junctions[i].paths[j].get(move);
+					junctionDistances[i][j*NUM_MOVES+move.ordinal()]=path==null ? -1 : path.length;
+				}
 	}
 
 	//for Ms Pac-Man
@@ -79,8 +100,8 @@ public class PathsCache
 				//to the first junction
 				int distance=closestFromJunctions.get(i).path.length;
 				//junction to junction
-				int[] tmpPath=junctions[junctionIndexConverter.get(closestFromJunctions.get(i).nodeID)]
-						.paths[junctionIndexConverter.get(closestToJunctions.get(j).nodeID)].get(MOVE.NEUTRAL);
+				int[] tmpPath=junctions[junctionIndexConverter[closestFromJunctions.get(i).nodeID]]
+						.paths[junctionIndexConverter[closestToJunctions.get(j).nodeID]].get(MOVE.NEUTRAL);
 				distance+=tmpPath.length;				
 				//to the second junction
 				distance+=closestToJunctions.get(j).path.length;
@@ -100,10 +121,75 @@ public class PathsCache
 	
 	/////// ghosts //////////
 	
-	//To be made more efficient shortly.
+	//Same as getPathFromA2B(a,b,lastMoveMade).length, but looks up the lengths instead of building the path
 	public int getPathDistanceFromA2B(int a, int b, MOVE lastMoveMade)
 	{
-		return getPathFromA2B(a, b, lastMoveMade).length;
+		//not going anywhere
+		if(a==b)
+			return 0;
+
+		//first, go to closest junction (there is only one since we can't reverse)
+		JunctionData fromJunction = nodes[a].getNearestJunction(lastMoveMade);
+		
+		//if target is on the way to junction, then we are done
+		for (int i = 0; i < fromJunction.path.length; i++)
+			if (fromJunction.path[i] == b)
+				return i + 1;
+		
+		//we have reached a junction, fromJunction, which we entered with moveEnteredJunction
+		int junctionFromId = junctionIndexConverter[fromJunction.nodeID];
+		MOVE moveEnteredJunction = fromJunction.lastMove == MOVE.NEUTRAL ? lastMoveMade : fromJunction.lastMove; //if we are at a junction, consider last move instead
+		int[] distancesFrom = junctionDistances[junctionFromId];
+		 	
+		//now we need to get the 1 or 2 target junctions that enclose the target point
+		ArrayList<JunctionData> junctionsTo=nodes[b].closestJunctions;
+				
+		int minDist = Integer.MAX_VALUE;
+		int shortestPathLength = -1;
+		int closestJunction = -1;		
+		
+		boolean onTheWay=false;
+	
+		for (int q = 0; q < junctionsTo.size(); q++) 
+		{
+			JunctionData junctionTo = junctionsTo.get(q);
+			int junctionToId = junctionIndexConverter[junctionTo.nodeID];
+			
+			if(junctionFromId==junctionToId)
+			{
+				if(junctionTo.reverseFirstMove != moveEnteredJunction.opposite())
+				{
+					//the reverse path ends in b, so all of it is needed
+					shortestPathLength = junctionTo.reversePath.length;
+					minDist = shortestPathLength;
+					closestJunction = q;
+					onTheWay=true;
+				}
+			}
+			else
+			{				
+				for (int move = 0; move < NUM_MOVES; move++) 
+				{
+					int distance = distancesFrom[junctionToId*NUM_MOVES+move];
+					
+					if (distance != -1 && MOVES[move].opposite() != moveEnteredJunction && MOVES[move] != MOVE.NEUTRAL) 
+					{
+						if (distance+junctionTo.path.length < minDist)//need to take distance from toJunction to target into account
+						{							
+							minDist = distance+junctionTo.path.length;
+							shortestPathLength = distance;
+							closestJunction = q;
+							onTheWay=false;
+						}
+					}
+				}
+			}
+		}
+					
+		if(!onTheWay)
+			return fromJunction.path.length + shortestPathLength + junctionsTo.get(closestJunction).reversePath.length;
+		else
+			return fromJunction.path.length + shortestPathLength;
 	}
 	
 	public int[] getPathFromA2B(int a, int b, MOVE lastMoveMade)
@@ -122,7 +208,7 @@ public class PathsCache
 		
 		//we have reached a junction, fromJunction, which we entered with moveEnteredJunction
 		int junctionFrom = fromJunction.nodeID;
-		int junctionFromId = junctionIndexConverter.get(junctionFrom);
+		int junctionFromId = junctionIndexConverter[junctionFrom];
 		MOVE moveEnteredJunction = fromJunction.lastMove.equals(MOVE.NEUTRAL) ? lastMoveMade : fromJunction.lastMove; //if we are at a junction, consider last move instead
 		 	
 		//now we need to get the 1 or 2 target junctions that enclose the target point
@@ -136,11 +222,11 @@ public class PathsCache
 	
 		for (int q = 0; q < junctionsTo.size(); q++) 
 		{
-			int junctionToId = junctionIndexConverter.get(junctionsTo.get(q).nodeID);
+			int junctionToId = junctionIndexConverter[junctionsTo.get(q).nodeID];
 			
 			if(junctionFromId==junctionToId)
 			{
-				if(!game.getMoveToMakeToReachDirectNeighbour(junctionFrom, junctionsTo.get(q).reversePath[0]).equals(moveEnteredJunction.opposite()))
+				if(junctionsTo.get(q).reverseFirstMove != moveEnteredJunction.opposite())
 				{
 					int[] reversepath=junctionsTo.get(q).reversePath;
 					int cutoff=-1;
@@ -289,6 +375,7 @@ class JunctionData
 {
 	public int nodeID,nodeStartedFrom;
 	public MOVE firstMove, lastMove;
+	public MOVE reverseFirstMove;		//move from the junction to reversePath[0], null if the path is empty
 	public int[] path, reversePath;
 
 	public JunctionData(int nodeID, MOVE firstMove, int nodeStartedFrom, int[] path, MOVE lastMove) 
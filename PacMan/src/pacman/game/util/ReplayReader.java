@@ -0,0 +1,497 @@
+package pacman.game.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import pacman.game.Game;
+
+import static pacman.game.util.ReplayWriter.*;
+
+/**
+ * Reads replay files written by ReplayWriter. The file is mapped into memory rather than loaded,
+ * and only the keyframe index is kept on the heap: it is read from the end of the file, or built
+ * by a single pass over the records if the recording was interrupted.
+ *
+ * States can be read one after the other with next(), from any position with seek() or
+ * getState(), lazily with an iterator, or in parallel: the states between two keyframes form a
+ * segment that can be decoded independently of all others. Decoding a state costs at most the
+ * deltas since its keyframe.
+ *
+ * The sequential methods (next, seek, getState) share one position and must not be used by
+ * several threads at once; iterators and segment scans have their own positions and may.
+ * Replay files are limited to 2 GB.
+ */
+public final class ReplayReader implements Closeable, Iterable<Game>
+{
+	private final FileChannel channel;
+	private final ByteBuffer data;
+	private final int[] keyframeStates;
+	private final int[] keyframeOffsets;
+	private final int numStates;
+	private final Cursor cursor;
+
+	/**
+	 * A visitor of replay states, used by the scanning methods.
+	 */
+	public interface StateVisitor
+	{
+		/**
+		 * Called for a state of the replay.
+		 *
+		 * @param stateIndex The index of the state
+		 * @param game A game set to the state; it is re-used for the following states
+		 */
+		void visit(int stateIndex,Game game);
+	}
+
+	/**
+	 * Opens a replay file.
+	 *
+	 * @param fileName The name of the replay file
+	 * @throws IOException if the file cannot be read or is not a replay file
+	 */
+	public ReplayReader(String fileName) throws IOException
+	{
+		this(Paths.get(fileName));
+	}
+
+	/**
+	 * Opens a replay file.
+	 *
+	 * @param file The replay file
+	 * @throws IOException if the file cannot be read or is not a replay file
+	 */
+	public ReplayReader(Path file) throws IOException
+	{
+		channel=FileChannel.open(file,StandardOpenOption.READ);
+
+		try
+		{
+			if(channel.size()>Integer.MAX_VALUE)
+				throw new IOException(file+" is too large for a replay file");
+
+			data=channel.map(FileChannel.MapMode.READ_ONLY,0,channel.size());
+
+			if(!isReplay(data))
+				throw new IOException(file+" is not a replay file");
+
+			Index index=_readIndex();
+
+			if(index==null)
+				index=_buildIndex();
+
+			keyframeStates=index.states;
+			keyframeOffsets=index.offsets;
+			numStates=index.numStates;
+		}
+		catch(IOException e)
+		{
+			channel.close();
+			throw e;
+		}
+
+		cursor=new Cursor();
+		seek(0);
+	}
+
+	/**
+	 * Returns whether the buffer starts with the header of a replay file.
+	 *
+	 * @param buffer The buffer to check, from its current position
+	 * @return whether the buffer holds a replay
+	 */
+	public static boolean isReplay(ByteBuffer buffer)
+	{
+		return buffer.remaining()>=HEADER_LENGTH && buffer.getInt(buffer.position())==MAGIC
+				&& buffer.get(buffer.position()+4)==VERSION;
+	}
+
+	/**
+	 * Returns the number of states in the replay.
+	 *
+	 * @return The number of states
+	 */
+	public int getNumberOfStates()
+	{
+		return numStates;
+	}
+
+	/**
+	 * Returns the number of segments, i.e. of keyframes, in the replay.
+	 *
+	 * @return The number of segments
+	 */
+	public int getNumberOfSegments()
+	{
+		return keyframeStates.length;
+	}
+
+	/**
+	 * Returns the index of the first state of a segment; the segment ends where the next one starts.
+	 *
+	 * @param segment The index of the segment
+	 * @return The index of its first state
+	 */
+	public int getSegmentStart(int segment)
+	{
+		return keyframeStates[segment];
+	}
+
+	/**
+	 * Sets the game to the next state of the replay.
+	 *
+	 * @param game The game to set
+	 * @return whether there was another state; if not, the game is left unchanged
+	 */
+	public boolean next(Game game)
+	{
+		return cursor.next(game);
+	}
+
+	/**
+	 * Moves to a state, so that it is returned by the next call of next().
+	 *
+	 * @param stateIndex The index of the state, between 0 and the number of states
+	 */
+	public void seek(int stateIndex)
+	{
+		cursor.seek(stateIndex);
+	}
+
+	/**
+	 * Sets the game to a state of the replay. The following call of next() returns the state after it.
+	 *
+	 * @param stateIndex The index of the state
+	 * @param game The game to set
+	 * @return the game
+	 */
+	public Game getState(int stateIndex,Game game)
+	{
+		if(stateIndex<0 || stateIndex>=numStates)
+			throw new IndexOutOfBoundsException("state "+stateIndex+" of "+numStates);
+
+		seek(stateIndex);
+		next(game);
+
+		return game;
+	}
+
+	/**
+	 * Returns an iterator over all states that decodes them as it goes. The iterator has its own
+	 * position and returns the same game for every state, set to that state.
+	 *
+	 * @return The iterator
+	 */
+	public Iterator<Game> iterator()
+	{
+		final Cursor cursor=new Cursor();
+		cursor.seek(0);
+
+		return new Iterator<Game>()
+		{
+			private final Game game=new Game(0);
+
+			public boolean hasNext()
+			{
+				return cursor.stateIndex<numStates;
+			}
+
+			public Game next()
+			{
+				if(!cursor.next(game))
+					throw new NoSuchElementException();
+
+				return game;
+			}
+
+			public void remove()
+			{
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	/**
+	 * Visits the states of one segment in order, on the calling thread. Segments may be scanned
+	 * by several threads at the same time.
+	 *
+	 * @param segment The index of the segment
+	 * @param game The game to decode the states into
+	 * @param visitor The visitor of the states
+	 */
+	public void scanSegment(int segment,Game game,StateVisitor visitor)
+	{
+		int end=segment+1<keyframeStates.length ? keyframeStates[segment+1] : numStates;
+
+		Cursor cursor=new Cursor();
+		cursor.seekKeyframe(segment);
+
+		while(cursor.stateIndex<end && cursor.next(game))
+			visitor.visit(cursor.stateIndex-1,game);
+	}
+
+	/**
+	 * Visits all states, scanning the segments in parallel on the common fork-join pool. The
+	 * states of a segment are visited in order, but segments are visited concurrently.
+	 *
+	 * @param visitor The visitor of the states, which must be thread-safe
+	 */
+	public void scan(StateVisitor visitor)
+	{
+		scan(ForkJoinPool.commonPool(),visitor);
+	}
+
+	/**
+	 * Visits all states, scanning the segments in parallel on the given pool. The states of a
+	 * segment are visited in order, but segments are visited concurrently.
+	 *
+	 * @param pool The pool to scan on
+	 * @param visitor The visitor of the states, which must be thread-safe
+	 */
+	public void scan(ForkJoinPool pool,final StateVisitor visitor)
+	{
+		final ThreadLocal<Game> games=new ThreadLocal<Game>()
+		{
+			@Override
+			protected Game initialValue()
+			{
+				return new Game(0);
+			}
+		};
+
+		final List<RecursiveAction> segments=new ArrayList<RecursiveAction>(keyframeStates.length);
+
+		for(int i=0;i<keyframeStates.length;i++)
+		{
+			final int segment=i;
+
+			segments.add(new RecursiveAction()
+			{
+				@Override
+				protected void compute()
+				{
+					scanSegment(segment,games.get(),visitor);
+				}
+			});
+		}
+
+		pool.invoke(new RecursiveAction()
+		{
+			@Override
+			protected void compute()
+			{
+				invokeAll(segments);
+			}
+		});
+	}
+
+	/**
+	 * Closes the file. The mapping is released once the reader is garbage collected.
+	 *
+	 * @throws IOException if the file cannot be closed
+	 */
+	public void close() throws IOException
+	{
+		channel.close();
+	}
+
+	//the index written by ReplayWriter.close(), or null if there is none
+	private Index _readIndex()
+	{
+		int size=data.limit();
+
+		if(size<HEADER_LENGTH+FOOTER_LENGTH || data.getInt(size-4)!=END_MAGIC)
+			return null;
+
+		long indexOffset=data.getLong(size-FOOTER_LENGTH);
+		int numStates=data.getInt(size-8);
+
+		if(indexOffset<HEADER_LENGTH || indexOffset+5>size-FOOTER_LENGTH || data.get((int)indexOffset)!=INDEX)
+			return null;
+
+		int numKeyframes=data.getInt((int)indexOffset+1);
+
+		if(numKeyframes<0 || indexOffset+5+12L*numKeyframes!=size-FOOTER_LENGTH)
+			return null;
+
+		Index index=new Index(numKeyframes,numStates);
+
+		for(int i=0,position=(int)indexOffset+5;i<numKeyframes;i++,position+=12)
+		{
+			index.states[i]=data.getInt(position);
+			index.offsets[i]=(int)data.getLong(position+4);
+		}
+
+		return index;
+	}
+
+	//finds the keyframes by walking over all complete records
+	private Index _buildIndex()
+	{
+		Index index=new Index(16,0);
+		int numKeyframes=0;
+		ByteBuffer buffer=data.duplicate();
+		buffer.position(HEADER_LENGTH);
+
+		while(buffer.hasRemaining())
+		{
+			int start=buffer.position();
+			byte type=buffer.get(start);
+			int end;
+
+			try
+			{
+				if(type==KEYFRAME)
+					end=start+3+buffer.getShort(start+1);
+				else if(type==DELTA && numKeyframes>0)
+				{
+					buffer.position(start+1);
+					end=_getVarint(buffer);
+					end+=buffer.position();
+				}
+				else
+					break;
+			}
+			catch(RuntimeException e)
+			{
+				break;
+			}
+
+			if(end>buffer.limit())
+				break;						//incomplete last record
+
+			if(type==KEYFRAME)
+			{
+				if(numKeyframes==index.states.length)
+				{
+					index.states=Arrays.copyOf(index.states,numKeyframes*2);
+					index.offsets=Arrays.copyOf(index.offsets,numKeyframes*2);
+				}
+
+				index.states[numKeyframes]=index.numStates;
+				index.offsets[numKeyframes]=start;
+				numKeyframes++;
+			}
+
+			index.numStates++;
+			buffer.position(end);
+		}
+
+		index.states=Arrays.copyOf(index.states,numKeyframes);
+		index.offsets=Arrays.copyOf(index.offsets,numKeyframes);
+
+		return index;
+	}
+
+	private static final class Index
+	{
+		int[] states, offsets;
+		int numStates;
+
+		Index(int numKeyframes,int numStates)
+		{
+			states=new int[numKeyframes];
+			offsets=new int[numKeyframes];
+			this.numStates=numStates;
+		}
+	}
+
+	/*
+	 * A position in the replay with the state decoded so far. Each cursor has its own view of the
+	 * mapped file, so cursors can be used by different threads.
+	 */
+	private final class Cursor
+	{
+		final ByteBuffer buffer=data.duplicate();
+		final byte[] state=new byte[MAX_STATE_LENGTH];
+		final ByteBuffer stateView=ByteBuffer.wrap(state);
+		int stateIndex;				//index of the state the next record decodes to
+		int stateLength;
+
+		void seekKeyframe(int keyframe)
+		{
+			buffer.position(keyframeOffsets[keyframe]);
+			stateIndex=keyframeStates[keyframe];
+		}
+
+		void seek(int target)
+		{
+			if(target<0 || target>numStates)
+				throw new IndexOutOfBoundsException("state "+target+" of "+numStates);
+
+			if(keyframeStates.length==0)
+				return;
+
+			//continue from here if the target is ahead in the same segment
+			int keyframe=_keyframeBefore(target);
+
+			if(stateIndex>target || stateIndex<keyframeStates[keyframe] || stateIndex==0)
+				seekKeyframe(keyframe);
+
+			while(stateIndex<target)
+				_applyRecord();
+		}
+
+		boolean next(Game game)
+		{
+			if(stateIndex>=numStates)
+				return false;
+
+			_applyRecord();
+
+			stateView.clear();
+			stateView.limit(stateLength);
+			game.decodeGameState(stateView);
+
+			return true;
+		}
+
+		private int _keyframeBefore(int target)
+		{
+			int i=Arrays.binarySearch(keyframeStates,target);
+
+			return i>=0 ? i : Math.max(-i-2,0);
+		}
+
+		//applies the record at the position of the buffer to the state
+		private void _applyRecord()
+		{
+			byte type=buffer.get();
+
+			if(type==KEYFRAME)
+			{
+				stateLength=buffer.getShort();
+				buffer.get(state,0,stateLength);
+			}
+			else if(type==DELTA)
+			{
+				int end=_getVarint(buffer);
+				end+=buffer.position();
+
+				for(int offset=0;buffer.position()<end;)
+				{
+					offset+=_getVarint(buffer);
+					int length=_getVarint(buffer);
+					buffer.get(state,offset,length);
+					offset+=length;
+				}
+			}
+			else
+				throw new IllegalStateException("corrupt replay record at offset "+(buffer.position()-1));
+
+			stateIndex++;
+		}
+	}
+}
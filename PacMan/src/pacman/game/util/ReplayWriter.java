@@ -0,0 +1,266 @@
+package pacman.game.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import pacman.game.Game;
+
+/**
+ * Records a game to a binary replay file while it is being played. Every state is stored as the
+ * byte-wise difference of its binary encoding (see Game.encodeGameState()) to the previous state,
+ * so a tick usually costs a few dozen bytes: the changed positions, timers, moves, events and pill
+ * bits. A keyframe with the complete encoding is written every few ticks and whenever the length
+ * of the encoding changes with the maze, so a reader can start decoding at any keyframe.
+ *
+ * Records are written through a small buffer to a file channel, so the memory needed does not
+ * grow with the length of the game. When closed, the writer appends an index of all keyframes.
+ *
+ * The file format is:
+ *
+ *   header:   int MAGIC, byte VERSION
+ *   keyframe: byte KEYFRAME, short length, the encoding of the state
+ *   delta:    byte DELTA, varint length of the runs, runs (varint bytes skipped, varint length, bytes)
+ *   index:    byte INDEX, int number of keyframes, per keyframe (int state, long file offset)
+ *   footer:   long file offset of the index, int number of states, int END_MAGIC
+ *
+ * A file without footer (e.g. if recording was interrupted) can still be read up to its last
+ * complete record.
+ */
+public final class ReplayWriter implements Closeable
+{
+	public static final int DEFAULT_KEYFRAME_INTERVAL=200;		//states between two keyframes
+
+	static final int MAGIC=0x504D5250;							//"PMRP"
+	static final int END_MAGIC=0x454E4450;						//"ENDP"
+	static final byte VERSION=1;
+	static final byte KEYFRAME=1, DELTA=2, INDEX=3;
+	static final int HEADER_LENGTH=5, FOOTER_LENGTH=16;
+	static final int MAX_STATE_LENGTH=1024;
+
+	private static final int MAX_GAP=2;							//unchanged bytes that are cheaper to copy than to skip
+
+	private final FileChannel channel;
+	private final int keyframeInterval;
+	private final ByteBuffer out=ByteBuffer.allocate(1<<16);
+	private final ByteBuffer state=ByteBuffer.allocate(MAX_STATE_LENGTH);
+	private final ByteBuffer runs=ByteBuffer.allocate(3*MAX_STATE_LENGTH);
+	private final byte[] previous=new byte[MAX_STATE_LENGTH];
+	private int previousLength;
+	private int numStates, statesSinceKeyframe;
+	private int[] keyframeStates=new int[64];
+	private long[] keyframeOffsets=new long[64];
+	private int numKeyframes;
+	private long written;
+	private boolean closed;
+
+	/**
+	 * Creates a replay file with the default keyframe interval, replacing any existing file.
+	 *
+	 * @param fileName The name of the replay file
+	 * @throws IOException if the file cannot be created
+	 */
+	public ReplayWriter(String fileName) throws IOException
+	{
+		this(Paths.get(fileName),DEFAULT_KEYFRAME_INTERVAL);
+	}
+
+	/**
+	 * Creates a replay file, replacing any existing file.
+	 *
+	 * @param file The replay file
+	 * @param keyframeInterval The maximum number of states between two keyframes
+	 * @throws IOException if the file cannot be created
+	 */
+	public ReplayWriter(Path file,int keyframeInterval) throws IOException
+	{
+		if(keyframeInterval<1)
+			throw new IllegalArgumentException("keyframe interval must be positive");
+
+		this.keyframeInterval=keyframeInterval;
+		channel=FileChannel.open(file,StandardOpenOption.CREATE,StandardOpenOption.TRUNCATE_EXISTING,StandardOpenOption.WRITE);
+
+		out.putInt(MAGIC);
+		out.put(VERSION);
+	}
+
+	/**
+	 * Appends the current state of the game to the replay.
+	 *
+	 * @param game The game to record
+	 * @throws IOException if the replay cannot be written
+	 */
+	public void append(Game game) throws IOException
+	{
+		if(closed)
+			throw new IllegalStateException("replay writer is closed");
+
+		state.clear();
+		game.encodeGameState(state);
+		int length=state.position();
+		byte[] current=state.array();
+
+		if(out.remaining()<1+5+runs.capacity())
+			_flush();
+
+		if(numStates==0 || length!=previousLength || statesSinceKeyframe>=keyframeInterval)
+		{
+			_addKeyframe(numStates,written+out.position());
+			out.put(KEYFRAME);
+			out.putShort((short)length);
+			out.put(current,0,length);
+			statesSinceKeyframe=0;
+		}
+		else
+		{
+			_encodeRuns(current,length);
+			out.put(DELTA);
+			_putVarint(out,runs.position());
+			out.put(runs.array(),0,runs.position());
+		}
+
+		System.arraycopy(current,0,previous,0,length);
+		previousLength=length;
+		numStates++;
+		statesSinceKeyframe++;
+	}
+
+	/**
+	 * Returns the number of states recorded so far.
+	 *
+	 * @return The number of states
+	 */
+	public int getNumberOfStates()
+	{
+		return numStates;
+	}
+
+	/**
+	 * Writes the keyframe index and closes the file.
+	 *
+	 * @throws IOException if the replay cannot be written
+	 */
+	public void close() throws IOException
+	{
+		if(closed)
+			return;
+
+		closed=true;
+
+		try
+		{
+			long indexOffset=written+out.position();
+
+			if(out.remaining()<5)
+				_flush();
+
+			out.put(INDEX);
+			out.putInt(numKeyframes);
+
+			for(int i=0;i<numKeyframes;i++)
+			{
+				if(out.remaining()<12+FOOTER_LENGTH)
+					_flush();
+
+				out.putInt(keyframeStates[i]);
+				out.putLong(keyframeOffsets[i]);
+			}
+
+			out.putLong(indexOffset);
+			out.putInt(numStates);
+			out.putInt(END_MAGIC);
+			_flush();
+		}
+		finally
+		{
+			channel.close();
+		}
+	}
+
+	//the runs of bytes in which the current encoding differs from the previous one
+	private void _encodeRuns(byte[] current,int length)
+	{
+		runs.clear();
+
+		int end=0;		//end of the last run
+		int i=0;
+
+		while(i<length)
+		{
+			if(current[i]==previous[i])
+			{
+				i++;
+				continue;
+			}
+
+			int start=i;
+			int last=i;
+
+			//extend the run over small gaps of unchanged bytes
+			for(i++;i<length && i-last<=MAX_GAP+1;i++)
+				if(current[i]!=previous[i])
+					last=i;
+
+			_putVarint(runs,start-end);
+			_putVarint(runs,last+1-start);
+			runs.put(current,start,last+1-start);
+
+			end=last+1;
+			i=end;
+		}
+	}
+
+	private void _addKeyframe(int stateIndex,long offset)
+	{
+		if(numKeyframes==keyframeStates.length)
+		{
+			keyframeStates=Arrays.copyOf(keyframeStates,numKeyframes*2);
+			keyframeOffsets=Arrays.copyOf(keyframeOffsets,numKeyframes*2);
+		}
+
+		keyframeStates[numKeyframes]=stateIndex;
+		keyframeOffsets[numKeyframes]=offset;
+		numKeyframes++;
+	}
+
+	private void _flush() throws IOException
+	{
+		out.flip();
+
+		while(out.hasRemaining())
+			written+=channel.write(out);
+
+		out.clear();
+	}
+
+	//unsigned LEB128
+	static void _putVarint(ByteBuffer buffer,int value)
+	{
+		while((value&~0x7F)!=0)
+		{
+			buffer.put((byte)((value&0x7F)|0x80));
+			value>>>=7;
+		}
+
+		buffer.put((byte)value);
+	}
+
+	static int _getVarint(ByteBuffer buffer)
+	{
+		int value=0;
+
+		for(int shift=0;;shift+=7)
+		{
+			byte b=buffer.get();
+			value|=(b&0x7F)<<shift;
+
+			if(b>=0)
+				return value;
+		}
+	}
+}
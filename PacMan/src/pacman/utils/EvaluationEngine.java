@@ -0,0 +1,173 @@
+package pacman.utils;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import pacman.controllers.AController;
+import pacman.controllers.Controller;
+import pacman.controllers.ControllerFactory;
+import pacman.game.Game;
+import pacman.game.Constants.GHOST;
+import pacman.game.Constants.MOVE;
+
+/**
+ * Plays evaluation games on a fixed pool of worker threads. Every worker keeps its own game
+ * and controller instances and re-uses them for all trials it plays, so the threads and
+ * most of the objects are only created once per training run. The game and both controllers
+ * are seeded from the seed of the trial, so the score of a trial does not depend on the worker
+ * or on the trials played before.
+ */
+public class EvaluationEngine {
+
+	private static EvaluationEngine sharedEngine;
+
+	private final ExecutorService pool;
+	private final ThreadLocal<Worker> workers = new ThreadLocal<Worker>() {
+		@Override
+		protected Worker initialValue() {
+			return new Worker();
+		}
+	};
+
+	/**
+	 * create an engine playing at most numThreads games at the same time
+	 */
+	public EvaluationEngine(int numThreads) {
+		pool = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "evaluator-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * get the engine shared by the whole application, using one thread per core
+	 */
+	public static synchronized EvaluationEngine getSharedEngine() {
+		if (sharedEngine == null)
+			sharedEngine = new EvaluationEngine(Runtime.getRuntime().availableProcessors());
+
+		return sharedEngine;
+	}
+
+	/**
+	 * play one game for every seed and return the score of each trial
+	 */
+	public int[] evaluate(AController pacManController, ControllerFactory<EnumMap<GHOST, MOVE>> ghostFactory, long[] seeds) {
+		return evaluate(new AController[] { pacManController }, ghostFactory, seeds)[0];
+	}
+
+	/**
+	 * play one game for every combination of controller and seed as a single batch and return
+	 * the scores indexed by controller and seed
+	 */
+	public int[][] evaluate(AController[] pacManControllers, ControllerFactory<EnumMap<GHOST, MOVE>> ghostFactory, long[] seeds) {
+		List<Trial> trials = new ArrayList<Trial>(pacManControllers.length * seeds.length);
+		for (AController pacManController : pacManControllers) {
+			Vector parameters = pacManController.getPolicyParameters();
+			for (long seed : seeds) {
+				trials.add(new Trial(pacManController, parameters, ghostFactory, seed));
+			}
+		}
+
+		int[][] scores = new int[pacManControllers.length][seeds.length];
+		try {
+			List<Future<Integer>> results = pool.invokeAll(trials);
+			int i = 0;
+			for (int c = 0; c < scores.length; c++) {
+				for (int s = 0; s < seeds.length; s++) {
+					scores[c][s] = results.get(i++).get();
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("evaluation interrupted", e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("evaluation failed", e.getCause());
+		}
+
+		return scores;
+	}
+
+	/**
+	 * stop the worker threads of this engine
+	 */
+	public void shutdown() {
+		pool.shutdown();
+	}
+
+	/**
+	 * a single game to be played by one of the workers
+	 */
+	private class Trial implements Callable<Integer> {
+
+		private final AController pacManController;
+		private final Vector parameters;
+		private final ControllerFactory<EnumMap<GHOST, MOVE>> ghostFactory;
+		private final long seed;
+
+		private Trial(AController pacManController, Vector parameters, ControllerFactory<EnumMap<GHOST, MOVE>> ghostFactory, long seed) {
+			this.pacManController = pacManController;
+			this.parameters = parameters;
+			this.ghostFactory = ghostFactory;
+			this.seed = seed;
+		}
+
+		@Override
+		public Integer call() {
+			return workers.get().play(this);
+		}
+	}
+
+	/**
+	 * the game and controllers owned by a single worker thread
+	 */
+	private static class Worker {
+
+		private Game game;
+		private AController pacManController;
+		private ControllerFactory<EnumMap<GHOST, MOVE>> ghostFactory;
+		private Controller<EnumMap<GHOST, MOVE>> ghostController;
+
+		private int play(Trial trial) {
+			// re-use the warm instances where possible
+			if (game == null)
+				game = new Game(trial.seed);
+			else
+				game.reset(trial.seed);
+
+			if (pacManController == null || pacManController.getClass() != trial.pacManController.getClass())
+				pacManController = trial.pacManController.copy();
+			if (trial.parameters != null)
+				pacManController.setPolicyParameters(trial.parameters);
+
+			if (ghostFactory != trial.ghostFactory) {
+				ghostFactory = trial.ghostFactory;
+				ghostController = ghostFactory.create();
+			}
+
+			// the controllers draw from generators seeded by the trial, so a trial is repeatable
+			pacManController.setSeed(31 * trial.seed + 1);
+			ghostController.setSeed(31 * trial.seed + 2);
+
+			while (!game.gameOver()) {
+				game.advanceGame(pacManController.getMove(game, -1), ghostController.getMove(game, -1));
+			}
+
+			return game.getScore();
+		}
+	}
+}
@@ -0,0 +1,334 @@
+package pacman.utils;
+
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import pacman.controllers.Controller;
+import pacman.controllers.ControllerFactory;
+import pacman.game.Game;
+import pacman.game.Constants.GHOST;
+import pacman.game.Constants.MOVE;
+
+/**
+ * Plays seeded headless games on all cores. The results of the single games are written as CSV
+ * or JSON lines the moment they complete, and running statistics of the scores are kept while
+ * the experiment is going on. Every worker thread creates its controllers once and re-uses them,
+ * together with its game, for all trials it plays.
+ */
+public class ExperimentRunner {
+
+	/**
+	 * the output format of the per-game results
+	 */
+	public enum Format {
+		CSV, JSON
+	}
+
+	private final ExecutorService pool;
+	private final int numThreads;
+	private final ThreadLocal<Worker> workers = new ThreadLocal<Worker>() {
+		@Override
+		protected Worker initialValue() {
+			return new Worker();
+		}
+	};
+
+	/**
+	 * create a runner with one thread per core
+	 */
+	public ExperimentRunner() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * create a runner playing at most numThreads games at the same time
+	 */
+	public ExperimentRunner(int numThreads) {
+		this.numThreads = numThreads;
+		pool = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "experiment-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * play one game per seed and return the statistics of the scores
+	 */
+	public Statistics run(ControllerFactory<MOVE> pacManFactory, ControllerFactory<EnumMap<GHOST, MOVE>> ghostFactory, long[] seeds) {
+		return run(pacManFactory, ghostFactory, seeds, null, Format.CSV);
+	}
+
+	/**
+	 * play one game per seed, write the result of every game to out as soon as it completes and
+	 * return the statistics of the scores. The results are written in order of completion.
+	 */
+	public Statistics run(ControllerFactory<MOVE> pacManFactory, ControllerFactory<EnumMap<GHOST, MOVE>> ghostFactory, long[] seeds,
+			Writer out, Format format) {
+		PrintWriter writer = out == null ? null : new PrintWriter(out);
+		if (writer != null && format == Format.CSV)
+			writer.println(TrialResult.CSV_HEADER);
+
+		// keep the queue short, so results are streamed while later trials are still waiting
+		CompletionService<TrialResult> completion = new ExecutorCompletionService<TrialResult>(pool);
+		Statistics statistics = new Statistics(seeds.length);
+		int submitted = 0;
+		try {
+			for (; submitted < Math.min(seeds.length, 2 * numThreads); submitted++) {
+				completion.submit(new Trial(pacManFactory, ghostFactory, seeds[submitted]));
+			}
+
+			for (int done = 0; done < seeds.length; done++) {
+				TrialResult result = completion.take().get();
+				if (submitted < seeds.length) {
+					completion.submit(new Trial(pacManFactory, ghostFactory, seeds[submitted++]));
+				}
+
+				statistics.add(result.getScore());
+				if (writer != null) {
+					writer.println(format == Format.CSV ? result.toCsv() : result.toJson());
+					writer.flush();
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("experiment interrupted", e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("trial failed", e.getCause());
+		}
+
+		if (writer != null && writer.checkError())
+			throw new IllegalStateException("could not write the results");
+
+		return statistics;
+	}
+
+	/**
+	 * stop the worker threads of this runner
+	 */
+	public void shutdown() {
+		pool.shutdown();
+	}
+
+	/**
+	 * a single game to be played by one of the workers
+	 */
+	private class Trial implements Callable<TrialResult> {
+
+		private final ControllerFactory<MOVE> pacManFactory;
+		private final ControllerFactory<EnumMap<GHOST, MOVE>> ghostFactory;
+		private final long seed;
+
+		private Trial(ControllerFactory<MOVE> pacManFactory, ControllerFactory<EnumMap<GHOST, MOVE>> ghostFactory, long seed) {
+			this.pacManFactory = pacManFactory;
+			this.ghostFactory = ghostFactory;
+			this.seed = seed;
+		}
+
+		@Override
+		public TrialResult call() {
+			return workers.get().play(this);
+		}
+	}
+
+	/**
+	 * the game and controllers owned by a single worker thread
+	 */
+	private static class Worker {
+
+		private Game game;
+		private ControllerFactory<MOVE> pacManFactory;
+		private ControllerFactory<EnumMap<GHOST, MOVE>> ghostFactory;
+		private Controller<MOVE> pacManController;
+		private Controller<EnumMap<GHOST, MOVE>> ghostController;
+
+		private TrialResult play(Trial trial) {
+			if (game == null)
+				game = new Game(trial.seed);
+			else
+				game.reset(trial.seed);
+
+			if (pacManFactory != trial.pacManFactory) {
+				pacManFactory = trial.pacManFactory;
+				pacManController = pacManFactory.create();
+			}
+			if (ghostFactory != trial.ghostFactory) {
+				ghostFactory = trial.ghostFactory;
+				ghostController = ghostFactory.create();
+			}
+
+			int deaths = 0;
+			long start = System.nanoTime();
+			while (!game.gameOver()) {
+				game.advanceGame(pacManController.getMove(game.copy(), -1), ghostController.getMove(game.copy(), -1));
+				if (game.wasPacManEaten())
+					deaths++;
+			}
+
+			return new TrialResult(trial.seed, game.getScore(), game.getCurrentLevel(), game.getTotalTime(), deaths,
+					(System.nanoTime() - start) / 1000000);
+		}
+	}
+
+	/**
+	 * the outcome of a single game
+	 */
+	public static class TrialResult {
+
+		private static final String CSV_HEADER = "seed,score,level,ticks,deaths,millis";
+
+		private final long seed;
+		private final int score, level, ticks, deaths;
+		private final long millis;
+
+		private TrialResult(long seed, int score, int level, int ticks, int deaths, long millis) {
+			this.seed = seed;
+			this.score = score;
+			this.level = level;
+			this.ticks = ticks;
+			this.deaths = deaths;
+			this.millis = millis;
+		}
+
+		/** get the seed of the game */
+		public long getSeed() {
+			return seed;
+		}
+
+		/** get the final score */
+		public int getScore() {
+			return score;
+		}
+
+		/** get the level the game ended in */
+		public int getLevel() {
+			return level;
+		}
+
+		/** get the number of ticks played */
+		public int getTicks() {
+			return ticks;
+		}
+
+		/** get the number of lives lost */
+		public int getDeaths() {
+			return deaths;
+		}
+
+		/** get the wall-clock time the game took in milliseconds */
+		public long getMillis() {
+			return millis;
+		}
+
+		private String toCsv() {
+			return seed + "," + score + "," + level + "," + ticks + "," + deaths + "," + millis;
+		}
+
+		private String toJson() {
+			return "{\"seed\":" + seed + ",\"score\":" + score + ",\"level\":" + level + ",\"ticks\":" + ticks
+					+ ",\"deaths\":" + deaths + ",\"millis\":" + millis + "}";
+		}
+	}
+
+	/**
+	 * running statistics of a series of values: mean and variance are updated with Welford's
+	 * method, the values themselves are kept for the percentiles
+	 */
+	public static class Statistics {
+
+		private double[] values;
+		private int count;
+		private double mean, m2;
+		private boolean sorted = true;
+
+		/**
+		 * create empty statistics with room for the expected number of values
+		 */
+		public Statistics(int expectedCount) {
+			values = new double[Math.max(expectedCount, 16)];
+		}
+
+		/**
+		 * add a value
+		 */
+		public void add(double value) {
+			if (count == values.length)
+				values = Arrays.copyOf(values, 2 * count);
+			values[count++] = value;
+			sorted = false;
+
+			double delta = value - mean;
+			mean += delta / count;
+			m2 += delta * (value - mean);
+		}
+
+		/** get the number of values */
+		public int getCount() {
+			return count;
+		}
+
+		/** get the mean of the values */
+		public double getMean() {
+			return mean;
+		}
+
+		/** get the sample standard deviation of the values */
+		public double getStandardDeviation() {
+			return count > 1 ? Math.sqrt(m2 / (count - 1)) : 0;
+		}
+
+		/** get the standard error of the mean */
+		public double getStandardError() {
+			return count > 1 ? getStandardDeviation() / Math.sqrt(count) : 0;
+		}
+
+		/**
+		 * get the p-th percentile (0 to 100) of the values by the nearest-rank method
+		 */
+		public double getPercentile(double p) {
+			if (count == 0)
+				throw new IllegalStateException("no values");
+			if (!sorted) {
+				Arrays.sort(values, 0, count);
+				sorted = true;
+			}
+
+			int rank = (int) Math.ceil(p / 100 * count);
+			return values[Math.min(Math.max(rank, 1), count) - 1];
+		}
+
+		/** get the smallest value */
+		public double getMin() {
+			return getPercentile(0);
+		}
+
+		/** get the largest value */
+		public double getMax() {
+			return getPercentile(100);
+		}
+
+		@Override
+		public String toString() {
+			if (count == 0)
+				return "n=0";
+			return String.format("n=%d mean=%.1f se=%.1f min=%.0f p5=%.0f p25=%.0f median=%.0f p75=%.0f p95=%.0f max=%.0f", count, mean,
+					getStandardError(), getMin(), getPercentile(5), getPercentile(25), getPercentile(50), getPercentile(75),
+					getPercentile(95), getMax());
+		}
+	}
+}
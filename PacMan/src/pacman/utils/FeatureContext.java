@@ -0,0 +1,224 @@
+package pacman.utils;
+
+import java.util.Arrays;
+
+import pacman.game.Constants;
+import pacman.game.Game;
+import pacman.game.Constants.GHOST;
+import pacman.game.Constants.MOVE;
+
+/**
+ * Everything the features need to know about the ghosts and pills of a game state. A context is
+ * built once per tick with update() and then shared by all feature computations and sanity tests
+ * of that tick, instead of recomputing the ghost junction paths for every single feature.
+ *
+ * A context must be updated again whenever the game it was built from changes. The earliest ghost
+ * arrival time of every node is computed for all nodes at once, on the first call of
+ * reachableByGhost or getGhostArrivalTime after an update, so contexts of features that do not
+ * need the ghosts do not pay for it and every further test is a single array comparison.
+ */
+public class FeatureContext {
+
+	private Game game;
+
+	// junction paths of the living ghosts, indexed by ghost ordinal
+	private final int[][] ghostJunctionPaths = new int[Constants.NUM_GHOSTS][0];
+	private final int[] ghostJunctionPathLengths = new int[Constants.NUM_GHOSTS];
+	private int maxGhostJunctionPathLength;
+	private final int[] ghostLairTimes = new int[Constants.NUM_GHOSTS];
+	private final int[] ghostEdibleTimes = new int[Constants.NUM_GHOSTS];
+	private int ghostInitialNodeIndex;
+
+	// nodes of the normal and edible ghosts
+	private final int[] normalGhosts = new int[Constants.NUM_GHOSTS];
+	private int numNormalGhosts;
+	private final int[] edibleGhosts = new int[Constants.NUM_GHOSTS];
+	private int numEdibleGhosts;
+
+	// nodes of the remaining pills and power pills
+	private int[] activePills = new int[0];
+	private int numActivePills;
+	private int[] activePowerPills = new int[0];
+	private int numActivePowerPills;
+
+	// earliest time any ghost that is not edible can reach a node, valid if ghostArrivalTimesComputed
+	private int[] ghostArrivalTimes = new int[0];
+	private boolean ghostArrivalTimesComputed;
+
+	/**
+	 * rebuild the context for the current state of game
+	 */
+	public FeatureContext update(Game game) {
+		this.game = game;
+
+		int numNodes = game.getNumberOfNodes();
+		if (ghostArrivalTimes.length < numNodes) {
+			for (int i = 0; i < ghostJunctionPaths.length; i++)
+				ghostJunctionPaths[i] = new int[numNodes];
+			ghostArrivalTimes = new int[numNodes];
+		}
+
+		int[] pillIndices = game.getPillIndices();
+		if (activePills.length < pillIndices.length)
+			activePills = new int[pillIndices.length];
+		numActivePills = 0;
+		for (int i = 0; i < pillIndices.length; i++) {
+			if (game.isPillStillAvailable(i))
+				activePills[numActivePills++] = pillIndices[i];
+		}
+
+		int[] powerPillIndices = game.getPowerPillIndices();
+		if (activePowerPills.length < powerPillIndices.length)
+			activePowerPills = new int[powerPillIndices.length];
+		numActivePowerPills = 0;
+		for (int i = 0; i < powerPillIndices.length; i++) {
+			if (game.isPowerPillStillAvailable(i))
+				activePowerPills[numActivePowerPills++] = powerPillIndices[i];
+		}
+
+		ghostInitialNodeIndex = game.getGhostInitialNodeIndex();
+		maxGhostJunctionPathLength = 0;
+		numNormalGhosts = 0;
+		numEdibleGhosts = 0;
+		for (GHOST ghost : GHOST.values()) {
+			int g = ghost.ordinal();
+			ghostLairTimes[g] = game.getGhostLairTime(ghost);
+			ghostEdibleTimes[g] = game.getGhostEdibleTime(ghost);
+
+			// ghost is alive
+			if (ghostLairTimes[g] == 0) {
+				int ghostNodeIndex = game.getGhostCurrentNodeIndex(ghost);
+				if (ghostEdibleTimes[g] == 0)
+					normalGhosts[numNormalGhosts++] = ghostNodeIndex;
+				else
+					edibleGhosts[numEdibleGhosts++] = ghostNodeIndex;
+
+				// ghost did just left the lair
+				if (game.getGhostLastMoveMade(ghost) == MOVE.NEUTRAL && ghostNodeIndex == ghostInitialNodeIndex) {
+					ghostJunctionPaths[g][0] = ghostNodeIndex;
+					ghostJunctionPathLengths[g] = 1;
+				}
+				// ghost did not just left the lair
+				else {
+					ghostJunctionPathLengths[g] = FeatureExtractor.junctionPath(game, ghostNodeIndex, game.getGhostLastMoveMade(ghost), ghostJunctionPaths[g]);
+				}
+
+				maxGhostJunctionPathLength = Math.max(maxGhostJunctionPathLength, ghostJunctionPathLengths[g]);
+			}
+		}
+
+		ghostArrivalTimesComputed = false;
+
+		return this;
+	}
+
+	/**
+	 * get the game this context was built from
+	 */
+	public Game getGame() {
+		return game;
+	}
+
+	/**
+	 * get length of the longest ghost junction path
+	 */
+	public int getMaxGhostJunctionPathLength() {
+		return maxGhostJunctionPathLength;
+	}
+
+	/**
+	 * test if nodeIndex can be reached by any ghost within the time limit
+	 */
+	public boolean reachableByGhost(int nodeIndex, int timeLimit) {
+		return getGhostArrivalTime(nodeIndex) <= timeLimit;
+	}
+
+	/**
+	 * get the earliest time any ghost that is not edible can reach nodeIndex
+	 */
+	public int getGhostArrivalTime(int nodeIndex) {
+		if (!ghostArrivalTimesComputed) {
+			computeGhostArrivalTimes(game.getNumberOfNodes());
+			ghostArrivalTimesComputed = true;
+		}
+		return ghostArrivalTimes[nodeIndex];
+	}
+
+	/**
+	 * fill the arrival times of all nodes in one pass per source. A ghost inside the lair arrives
+	 * after its lair time plus the distance from the lair exit, an alive ghost either on its path
+	 * to the next junction or after that path plus the distance from the junction.
+	 */
+	private void computeGhostArrivalTimes(int numNodes) {
+		Arrays.fill(ghostArrivalTimes, 0, numNodes, Integer.MAX_VALUE);
+
+		// all ghosts inside the lair leave at the same node, only the earliest one matters
+		int minLairTime = Integer.MAX_VALUE;
+		for (int g = 0; g < Constants.NUM_GHOSTS; g++) {
+			if (ghostLairTimes[g] > 0)
+				minLairTime = Math.min(minLairTime, ghostLairTimes[g]);
+		}
+		if (minLairTime != Integer.MAX_VALUE)
+			relaxFrom(ghostInitialNodeIndex, minLairTime, numNodes);
+
+		for (int g = 0; g < Constants.NUM_GHOSTS; g++) {
+			// ghost is alive and not edible
+			if (ghostLairTimes[g] == 0 && ghostEdibleTimes[g] == 0) {
+				int[] junctionPath = ghostJunctionPaths[g];
+				int junctionPathLength = ghostJunctionPathLengths[g];
+
+				// path via the first junction
+				relaxFrom(junctionPath[junctionPathLength - 1], junctionPathLength - 1, numNodes);
+
+				// path to first junction
+				for (int i = 0; i < junctionPathLength; i++) {
+					if (i < ghostArrivalTimes[junctionPath[i]])
+						ghostArrivalTimes[junctionPath[i]] = i;
+				}
+			}
+		}
+	}
+
+	/**
+	 * lower the arrival time of every node to startTime plus its distance from sourceNodeIndex
+	 */
+	private void relaxFrom(int sourceNodeIndex, int startTime, int numNodes) {
+		for (int node = 0; node < numNodes; node++) {
+			int arrivalTime = startTime + game.getShortestPathDistance(sourceNodeIndex, node);
+			if (arrivalTime < ghostArrivalTimes[node])
+				ghostArrivalTimes[node] = arrivalTime;
+		}
+	}
+
+	public int[] getNormalGhosts() {
+		return normalGhosts;
+	}
+
+	public int getNumberOfNormalGhosts() {
+		return numNormalGhosts;
+	}
+
+	public int[] getEdibleGhosts() {
+		return edibleGhosts;
+	}
+
+	public int getNumberOfEdibleGhosts() {
+		return numEdibleGhosts;
+	}
+
+	public int[] getActivePills() {
+		return activePills;
+	}
+
+	public int getNumberOfActivePills() {
+		return numActivePills;
+	}
+
+	public int[] getActivePowerPills() {
+		return activePowerPills;
+	}
+
+	public int getNumberOfActivePowerPills() {
+		return numActivePowerPills;
+	}
+}
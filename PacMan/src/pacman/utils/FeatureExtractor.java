@@ -0,0 +1,599 @@
+package pacman.utils;
+
+import static pacman.game.Constants.EAT_DISTANCE;
+import static pacman.utils.FeatureUtils.MAX_DISTANCE;
+
+import pacman.game.Game;
+import pacman.game.Constants.MOVE;
+
+/**
+ * Computes the features described in FeatureUtils without allocating any objects once it is warmed
+ * up. All frontiers, paths and outputs are kept in buffers owned by the extractor, so an extractor
+ * must not be shared between threads. Use forCurrentThread() to get the extractor of the calling
+ * thread.
+ *
+ * Features are computed relative to a FeatureContext which should be built once per tick, see
+ * prepare(). The methods taking a Game build a fresh context on every call.
+ *
+ * The arrays returned by getFeatures and getExtendedFeatures are overwritten by the next call.
+ */
+public class FeatureExtractor {
+
+	public static final int NUM_FEATURES = 14;
+	public static final int NUM_EXTENDED_FEATURES = 30;
+
+	private static final ThreadLocal<FeatureExtractor> EXTRACTORS = new ThreadLocal<FeatureExtractor>() {
+		@Override
+		protected FeatureExtractor initialValue() {
+			return new FeatureExtractor();
+		}
+	};
+
+	private final double[] features = new double[NUM_FEATURES];
+	private final double[] extendedFeatures = new double[NUM_EXTENDED_FEATURES];
+	private final Frontier frontier = new Frontier(64);
+
+	// the context and game of the current computation
+	private final FeatureContext ownContext = new FeatureContext();
+	private FeatureContext context;
+	private Game game;
+
+	// junction paths of pacman
+	private int[] path = new int[0];
+	private int pathLength;
+	private int[] scratchPath = new int[0];
+	private int scratchPathLength;
+
+	// goalStamps[node] == stamp marks node as a goal of the current search
+	private int[] goalStamps = new int[0];
+	private int stamp;
+
+	/**
+	 * get the extractor owned by the calling thread
+	 */
+	public static FeatureExtractor forCurrentThread() {
+		return EXTRACTORS.get();
+	}
+
+	/**
+	 * get the features relative to nodeIndex and move, in the order of FeatureUtils.getFeatures
+	 */
+	public double[] getFeatures(Game game, int nodeIndex, MOVE move) {
+		return getFeatures(prepare(game), nodeIndex, move);
+	}
+
+	/**
+	 * get the features relative to nodeIndex and move for the game of the context
+	 */
+	public double[] getFeatures(FeatureContext context, int nodeIndex, MOVE move) {
+		use(context);
+
+		int i = 0;
+		features[i++] = getSavePathLength(nodeIndex, move, 110);
+		features[i++] = getNumberOfSavePaths(nodeIndex, move, 50);
+		features[i++] = getJunctionDistance(nodeIndex, move);
+		features[i++] = getShortestPathDifference(nodeIndex, move);
+		features[i++] = getPillsInDirection(nodeIndex, move);
+		features[i++] = getMinimumDistance(nodeIndex, move, context.getActivePills(), context.getNumberOfActivePills());
+		features[i++] = getMinimumDistance(nodeIndex, move, context.getActivePowerPills(), context.getNumberOfActivePowerPills());
+		features[i++] = FeatureUtils.getRemainingPills(game);
+		features[i++] = completable(nodeIndex, move);
+		features[i++] = getMinimumDistance(nodeIndex, move, context.getEdibleGhosts(), context.getNumberOfEdibleGhosts());
+		features[i++] = FeatureUtils.getRemainingEdibleTime(game);
+		features[i++] = getMinimumDistance(nodeIndex, move, context.getNormalGhosts(), context.getNumberOfNormalGhosts());
+		features[i++] = getMinimumDistance(game.getNeighbour(nodeIndex, move), move.opposite(), context.getNormalGhosts(), context.getNumberOfNormalGhosts());
+		features[i++] = move == game.getPacmanLastMoveMade().opposite() ? 1 : 0;
+
+		return features;
+	}
+
+	/**
+	 * get the extended features relative to nodeIndex and move, in the order of FeatureUtils.extendFeatures
+	 */
+	public double[] getExtendedFeatures(Game game, int nodeIndex, MOVE move) {
+		return getExtendedFeatures(prepare(game), nodeIndex, move);
+	}
+
+	/**
+	 * get the extended features relative to nodeIndex and move for the game of the context
+	 */
+	public double[] getExtendedFeatures(FeatureContext context, int nodeIndex, MOVE move) {
+		extendFeatures(getFeatures(context, nodeIndex, move), extendedFeatures);
+		return extendedFeatures;
+	}
+
+	/**
+	 * write the extended features of the given features into extendedFeatures
+	 */
+	public static void extendFeatures(double[] features, double[] extendedFeatures) {
+		int index = 0;
+
+		// copy old features
+		for (int j = 0; j < NUM_FEATURES; j++)
+			extendedFeatures[index++] = features[j];
+
+		// add squared value of features 0-7 and 9-12
+		for (int j = 0; j <= 7; j++)
+			extendedFeatures[index++] = features[j] * features[j];
+		for (int j = 9; j <= 12; j++)
+			extendedFeatures[index++] = features[j] * features[j];
+
+		// add some further featuers
+		extendedFeatures[index++] = (1 - features[9]) * features[10]; // edible ghosts
+		extendedFeatures[index++] = features[0] - features[2]; // safe path length after junction
+		extendedFeatures[index++] = features[11] - features[2]; // danger value
+		extendedFeatures[index++] = features[11] - features[6]; // distance difference ghost powerPill
+	}
+
+	/**
+	 * test whether the given move is sane
+	 */
+	public boolean isSane(Game game, int nodeIndex, MOVE move) {
+		return isSane(prepare(game), nodeIndex, move);
+	}
+
+	/**
+	 * test whether the given move is sane for the game of the context
+	 */
+	public boolean isSane(FeatureContext context, int nodeIndex, MOVE move) {
+		use(context);
+		return isSane(nodeIndex, move);
+	}
+
+	public double getSavePathLength(Game game, int nodeIndex, MOVE initialMove, int depthLimit) {
+		use(prepare(game));
+		return getSavePathLength(nodeIndex, initialMove, depthLimit);
+	}
+
+	public double getNumberOfSavePaths(Game game, int nodeIndex, MOVE initialMove, int depthLimit) {
+		use(prepare(game));
+		return getNumberOfSavePaths(nodeIndex, initialMove, depthLimit);
+	}
+
+	public double getJunctionDistance(Game game, int nodeIndex, MOVE initialMove) {
+		use(prepare(game));
+		return getJunctionDistance(nodeIndex, initialMove);
+	}
+
+	public double getShortestPathDifference(Game game, int nodeIndex, MOVE initialMove) {
+		use(prepare(game));
+		return getShortestPathDifference(nodeIndex, initialMove);
+	}
+
+	public double getPillsInDirection(Game game, int nodeIndex, MOVE initialMove) {
+		use(prepare(game));
+		return getPillsInDirection(nodeIndex, initialMove);
+	}
+
+	public double completable(Game game, int nodeIndex, MOVE initialMove) {
+		use(prepare(game));
+		return completable(nodeIndex, initialMove);
+	}
+
+	public double getMinimumDistance(Game game, int startNodeIndex, MOVE initialMove, int[] goalNodeIndices) {
+		use(prepare(game));
+		return getMinimumDistance(startNodeIndex, initialMove, goalNodeIndices, goalNodeIndices.length);
+	}
+
+	/**
+	 * build the context of this extractor for the current state of game. The context is valid
+	 * until the next call of prepare or of one of the methods taking a Game.
+	 */
+	public FeatureContext prepare(Game game) {
+		return ownContext.update(game);
+	}
+
+	/**
+	 * use the given context for the following computations and size the buffers for its maze
+	 */
+	private void use(FeatureContext context) {
+		this.context = context;
+		this.game = context.getGame();
+
+		int numNodes = game.getNumberOfNodes();
+		if (path.length < numNodes) {
+			path = new int[numNodes];
+			scratchPath = new int[numNodes];
+			goalStamps = new int[numNodes];
+			stamp = 0;
+		}
+	}
+
+	private double getNumberOfSavePaths(int nodeIndex, MOVE initialMove, int depthLimit) {
+		// initialize BFS
+		frontier.clear();
+		frontier.add(game.getNeighbour(nodeIndex, initialMove), nodeIndex, 1);
+		int paths = 0;
+
+		// BFS
+		while (!frontier.isEmpty()) {
+			frontier.pop();
+			int node = frontier.node;
+			int preNode = frontier.preNode;
+			int depth = frontier.depth;
+
+			// continue if node is not safely reachable
+			if (reachableByGhost(node, depth + EAT_DISTANCE))
+				continue;
+
+			// reached depth limit
+			if (depth == depthLimit) {
+				paths++;
+				continue;
+			}
+
+			// expand frontier with neighbor nodes
+			expand(node, preNode, depth);
+		}
+
+		return (double) paths / 15;
+	}
+
+	private double getJunctionDistance(int nodeIndex, MOVE initialMove) {
+		if (game.getNeighbour(nodeIndex, initialMove) == -1)
+			throw new IllegalArgumentException("invalid move given");
+
+		pathLength = junctionPath(game, game.getNeighbour(nodeIndex, initialMove), initialMove, path);
+		return (double) pathLength / MAX_DISTANCE;
+	}
+
+	private double getShortestPathDifference(int nodeIndex, MOVE initialMove) {
+		pathLength = junctionPath(game, nodeIndex, initialMove, path);
+		int pathToJunctionLength = pathLength - 1;
+		int shortestPathLength = game.getShortestPathDistance(nodeIndex, path[pathToJunctionLength]);
+
+		return (double) (pathToJunctionLength - shortestPathLength) / MAX_DISTANCE;
+	}
+
+	private double getPillsInDirection(int nodeIndex, MOVE initialMove) {
+		pathLength = junctionPath(game, nodeIndex, initialMove, path);
+		int pills = 0;
+		for (int i = 0; i < pathLength; i++) {
+			if (hasPill(path[i]))
+				pills++;
+		}
+
+		return (double) pills / (game.getNumberOfPills() + game.getNumberOfPowerPills());
+	}
+
+	private boolean isSane(int nodeIndex, MOVE move) {
+		pathLength = junctionPath(game, nodeIndex, move, path);
+		for (int i = 0; i < pathLength; i++) {
+			if (!reachableByGhost(path[i], i + EAT_DISTANCE)) {
+				int powerPillIndex = game.getPowerPillIndex(path[i]);
+				if (powerPillIndex != -1 && game.isPowerPillStillAvailable(powerPillIndex)) {
+					return true;
+				}
+			}
+			else {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private double getMinimumDistance(int startNodeIndex, MOVE initialMove, int[] goalNodeIndices, int numGoals) {
+		if (game.getNeighbour(startNodeIndex, initialMove) == -1)
+			throw new IllegalArgumentException("invalid move given");
+
+		// skip if there are no goal nodes
+		if (numGoals != 0) {
+			// mark goal nodes
+			stamp++;
+			for (int i = 0; i < numGoals; i++)
+				goalStamps[goalNodeIndices[i]] = stamp;
+
+			// test startNodeIndex
+			if (goalStamps[startNodeIndex] == stamp)
+				return 0;
+
+			// breadth first search
+			frontier.clear();
+			frontier.add(game.getNeighbour(startNodeIndex, initialMove), startNodeIndex, 1);
+
+			while (!frontier.isEmpty()) {
+				frontier.pop();
+				int node = frontier.node;
+				int preNode = frontier.preNode;
+				int depth = frontier.depth;
+
+				// reached startNode again
+				if (node == startNodeIndex) {
+					// push back current node
+					frontier.push(node, preNode, depth);
+
+					// iterate over frontier
+					int minDist = MAX_DISTANCE;
+					while (!frontier.isEmpty()) {
+						frontier.pop();
+						for (int i = 0; i < numGoals; i++) {
+							int distNodeToGoal = game.getShortestPathDistance(frontier.node, goalNodeIndices[i]);
+							if (distNodeToGoal != -1) {
+								minDist = Math.min(minDist, frontier.depth + distNodeToGoal);
+							}
+						}
+					}
+
+					return (double) minDist / MAX_DISTANCE;
+				}
+
+				// test if any goal is reached
+				if (goalStamps[node] == stamp)
+					return (double) depth / MAX_DISTANCE;
+
+				// don't expand further if depth limit is reached
+				if (depth == MAX_DISTANCE)
+					continue;
+
+				// expand frontier with neighbor nodes
+				expand(node, preNode, depth);
+			}
+		}
+
+		return 1;
+	}
+
+	private double getSavePathLength(int nodeIndex, MOVE initialMove, int depthLimit) {
+		// assure a general depth limit
+		depthLimit = Math.min(depthLimit, MAX_DISTANCE);
+
+		// get junction paths for pacMan and ghosts
+		pathLength = junctionPath(game, nodeIndex, initialMove, path);
+		int k = Math.max(pathLength, context.getMaxGhostJunctionPathLength());
+
+		// initialize BFS
+		frontier.clear();
+		frontier.add(game.getNeighbour(nodeIndex, initialMove), nodeIndex, 1);
+		int maxDepth = 0;
+
+		// node BFS up to depth of k + 1
+		while (!frontier.isEmpty()) {
+			if (frontier.peekDepth() > k)
+				break;
+
+			// get current node
+			frontier.pop();
+			int node = frontier.node;
+			int preNode = frontier.preNode;
+			int depth = frontier.depth;
+
+			// skip if node is not safely reachable
+			if (reachableByGhost(node, depth + EAT_DISTANCE))
+				continue;
+
+			// don't expand further if depth limit is reached
+			if (depth >= depthLimit)
+				return (double) depth / MAX_DISTANCE;
+
+			// update maxDepth
+			maxDepth = depth;
+
+			// expand frontier with neighbor nodes
+			expand(node, preNode, depth);
+		}
+
+		// remove every not safely reachable node in order to assure
+		// the invariant of the succeeding loop
+		for (int i = frontier.size(); i > 0; i--) {
+			frontier.pop();
+			if (!reachableByGhost(frontier.node, frontier.depth + EAT_DISTANCE))
+				frontier.add(frontier.node, frontier.preNode, frontier.depth);
+		}
+
+		// junction BFS
+		while (!frontier.isEmpty()) {
+			frontier.pop();
+			int node = frontier.node;
+			int preNode = frontier.preNode;
+			int depth = frontier.depth;
+
+			// don't expand further if depth limit is reached
+			if (depth > depthLimit)
+				return (double) depthLimit / MAX_DISTANCE;
+
+			// expand frontier
+			MOVE[] moves = game.getPossibleMoves(node);
+			int[] neighbors = game.getNeighbouringNodes(node);
+			for (int m = 0; m < moves.length; m++) {
+				int neighborNode = neighbors[m];
+				if (neighborNode != preNode) {
+					scratchPathLength = junctionPath(game, neighborNode, moves[m], scratchPath);
+					int junctionNode = scratchPath[scratchPathLength - 1];
+					int preJunctionNode = scratchPathLength > 1 ? scratchPath[scratchPathLength - 2] : node;
+					int distToJunctionNode = depth + scratchPathLength;
+
+					// expand frontier with safely reachable neighbor junction
+					if (!reachableByGhost(junctionNode, distToJunctionNode + EAT_DISTANCE))
+						frontier.add(junctionNode, preJunctionNode, distToJunctionNode);
+
+					// get depth of farthest reachable node
+					else {
+						int reachedDepth = 0;
+						for (int i = 0; i < scratchPathLength; i++) {
+							if (!reachableByGhost(scratchPath[i], depth + i + 1 + EAT_DISTANCE))
+								reachedDepth = i + 1;
+							else
+								break;
+						}
+
+						maxDepth = Math.max(maxDepth, depth + reachedDepth);
+					}
+				}
+			}
+		}
+
+		maxDepth = Math.min(maxDepth, depthLimit);
+		return (double) maxDepth / MAX_DISTANCE;
+	}
+
+	private double completable(int nodeIndex, MOVE initialMove) {
+		int remainingPills = game.getNumberOfActivePills() + game.getNumberOfActivePowerPills();
+		int safelyEdiblePills = 0;
+		pathLength = junctionPath(game, nodeIndex, initialMove, path);
+		for (int i = 0; i < pathLength; i++) {
+			if (!reachableByGhost(path[i], i + EAT_DISTANCE)) {
+				if (hasPill(path[i])) {
+					safelyEdiblePills++;
+				}
+			}
+			else {
+				break;
+			}
+		}
+
+		return safelyEdiblePills == remainingPills ? 1 : 0;
+	}
+
+	/**
+	 * expand the frontier with all neighbors of node except the one it was reached from
+	 */
+	private void expand(int node, int preNode, int depth) {
+		for (int neighborNode : game.getNeighbouringNodes(node)) {
+			if (neighborNode != preNode)
+				frontier.add(neighborNode, node, depth + 1);
+		}
+	}
+
+	/**
+	 * test if there is a pill or power pill left at nodeIndex
+	 */
+	private boolean hasPill(int nodeIndex) {
+		int pillIndex = game.getPillIndex(nodeIndex);
+		int powerPillIndex = game.getPowerPillIndex(nodeIndex);
+		return pillIndex != -1 && game.isPillStillAvailable(pillIndex) || powerPillIndex != -1 && game.isPowerPillStillAvailable(powerPillIndex);
+	}
+
+	/**
+	 * write the path to the next junction starting in nodeIndex taking the initial move into
+	 * buffer and return its length
+	 */
+	static int junctionPath(Game game, int nodeIndex, MOVE initialMove, int[] buffer) {
+		// no move
+		if (initialMove == MOVE.NEUTRAL)
+			throw new IllegalArgumentException("move must not be NEUTRAL");
+
+		int length = 0;
+		buffer[length++] = nodeIndex;
+
+		// nodeIndex is a junction
+		if (game.isJunction(nodeIndex))
+			return length;
+
+		// impossible move was given
+		if (game.getNeighbour(nodeIndex, initialMove) == -1) {
+			MOVE[] moves = game.getPossibleMoves(nodeIndex);
+			// no turn is possible following the given move
+			if (moves[0] != initialMove.opposite() && moves[1] != initialMove.opposite())
+				throw new IllegalArgumentException("invalid move given");
+			// take turn
+			else
+				initialMove = game.getPossibleMoves(nodeIndex, initialMove)[0];
+		}
+
+		MOVE moveDirection = initialMove;
+		int currNodeIndex = nodeIndex;
+
+		// follow path until junction is reached
+		while (!game.isJunction(currNodeIndex)) {
+			// reached a turn
+			if (game.getNeighbour(currNodeIndex, moveDirection) == -1)
+				moveDirection = game.getPossibleMoves(currNodeIndex, moveDirection)[0];
+
+			currNodeIndex = game.getNeighbour(currNodeIndex, moveDirection);
+			buffer[length++] = currNodeIndex;
+		}
+
+		return length;
+	}
+
+	/**
+	 * test if nodeIndex can be reached by any ghost within the time limit
+	 */
+	private boolean reachableByGhost(int nodeIndex, int timeLimit) {
+		return context.reachableByGhost(nodeIndex, timeLimit);
+	}
+
+	/**
+	 * a breadth first search frontier stored as a ring buffer of (node, preNode, depth) entries.
+	 * pop() stores the removed entry in the fields node, preNode and depth.
+	 */
+	private static class Frontier {
+
+		private int[] nodes, preNodes, depths;
+		private int head, size;
+		private int node, preNode, depth;
+
+		private Frontier(int capacity) {
+			nodes = new int[capacity];
+			preNodes = new int[capacity];
+			depths = new int[capacity];
+		}
+
+		private boolean isEmpty() {
+			return size == 0;
+		}
+
+		private int size() {
+			return size;
+		}
+
+		private void clear() {
+			head = 0;
+			size = 0;
+		}
+
+		private int peekDepth() {
+			return depths[head];
+		}
+
+		// append an entry at the end
+		private void add(int node, int preNode, int depth) {
+			if (size == nodes.length)
+				grow();
+
+			int tail = (head + size) % nodes.length;
+			nodes[tail] = node;
+			preNodes[tail] = preNode;
+			depths[tail] = depth;
+			size++;
+		}
+
+		// insert an entry at the front
+		private void push(int node, int preNode, int depth) {
+			if (size == nodes.length)
+				grow();
+
+			head = (head + nodes.length - 1) % nodes.length;
+			nodes[head] = node;
+			preNodes[head] = preNode;
+			depths[head] = depth;
+			size++;
+		}
+
+		// remove the first entry
+		private void pop() {
+			node = nodes[head];
+			preNode = preNodes[head];
+			depth = depths[head];
+			head = (head + 1) % nodes.length;
+			size--;
+		}
+
+		private void grow() {
+			int capacity = nodes.length * 2;
+			int[] newNodes = new int[capacity];
+			int[] newPreNodes = new int[capacity];
+			int[] newDepths = new int[capacity];
+			for (int i = 0; i < size; i++) {
+				int index = (head + i) % nodes.length;
+				newNodes[i] = nodes[index];
+				newPreNodes[i] = preNodes[index];
+				newDepths[i] = depths[index];
+			}
+			nodes = newNodes;
+			preNodes = newPreNodes;
+			depths = newDepths;
+			head = 0;
+		}
+	}
+}
@@ -0,0 +1,227 @@
+package pacman.utils;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import Jama.CholeskyDecomposition;
+import Jama.Matrix;
+import Jama.SingularValueDecomposition;
+import pacman.controllers.StateValuePair;
+
+/**
+ * Fits a linear model without intercept, value = coefficients . features, by least squares. The
+ * rows are not stored: only the normal equations, X^T X and X^T y, are accumulated, so the memory
+ * needed depends on the number of features only. Accumulators of disjoint parts of the data can be
+ * merged, which is how the rows are accumulated in parallel.
+ */
+public class LeastSquares {
+
+	private static final int ROWS_PER_TASK = 4096;	// rows below which a partition is not split
+	private static final double RANK_TOLERANCE = 1e-10;	// relative size below which a direction is taken as dependent
+
+	private final int dimension;
+	private final double[] xtx;		// upper triangle of X^T X, row-major
+	private final double[] xty;
+	private long count;
+
+	/**
+	 * create an empty accumulator for the given number of features
+	 */
+	public LeastSquares(int dimension) {
+		this.dimension = dimension;
+		xtx = new double[dimension * dimension];
+		xty = new double[dimension];
+	}
+
+	/**
+	 * add a row with the given features and value
+	 */
+	public void add(double[] features, double value) {
+		for (int i = 0; i < dimension; i++) {
+			double xi = features[i];
+			if (xi == 0)
+				continue;
+
+			int row = i * dimension;
+			for (int j = i; j < dimension; j++) {
+				xtx[row + j] += xi * features[j];
+			}
+			xty[i] += xi * value;
+		}
+		count++;
+	}
+
+	/**
+	 * add the rows accumulated by other
+	 */
+	public void merge(LeastSquares other) {
+		if (other.dimension != dimension)
+			throw new IllegalArgumentException("accumulators have different dimensions");
+
+		for (int i = 0; i < xtx.length; i++) {
+			xtx[i] += other.xtx[i];
+		}
+		for (int i = 0; i < dimension; i++) {
+			xty[i] += other.xty[i];
+		}
+		count += other.count;
+	}
+
+	/** get the number of rows added */
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * get the coefficients minimising the squared error over the rows added. The normal equations
+	 * are solved by Cholesky decomposition. If some features depend linearly on others (e.g. the
+	 * square of a feature that is 0 or 1), X^T X is singular and the solution with the smallest
+	 * norm is computed from the singular value decomposition instead.
+	 */
+	public Vector solve() {
+		if (count == 0)
+			throw new IllegalStateException("no rows added");
+
+		Matrix a = new Matrix(dimension, dimension);
+		for (int i = 0; i < dimension; i++) {
+			for (int j = i; j < dimension; j++) {
+				a.set(i, j, xtx[i * dimension + j]);
+				a.set(j, i, xtx[i * dimension + j]);
+			}
+		}
+		Matrix b = new Matrix(xty, dimension);
+
+		CholeskyDecomposition cholesky = a.chol();
+		if (cholesky.isSPD() && isFullRank(a, cholesky.getL()))
+			return new Vector(cholesky.solve(b).getColumnPackedCopy());
+
+		return new Vector(pseudoInverse(a).times(b).getColumnPackedCopy());
+	}
+
+	// a pivot of the Cholesky factor that is tiny relative to its diagonal entry of a means that the
+	// feature is (up to rounding) a linear combination of the features before it
+	private static boolean isFullRank(Matrix a, Matrix l) {
+		for (int i = 0; i < a.getRowDimension(); i++) {
+			if (l.get(i, i) * l.get(i, i) <= RANK_TOLERANCE * a.get(i, i))
+				return false;
+		}
+		return true;
+	}
+
+	// pseudo-inverse of the symmetric matrix a, ignoring singular values that are 0 up to rounding
+	private static Matrix pseudoInverse(Matrix a) {
+		SingularValueDecomposition svd = a.svd();
+		double[] singularValues = svd.getSingularValues();
+
+		Matrix inverseS = new Matrix(singularValues.length, singularValues.length);
+		for (int i = 0; i < singularValues.length; i++) {
+			if (singularValues[i] > RANK_TOLERANCE * singularValues[0])
+				inverseS.set(i, i, 1 / singularValues[i]);
+		}
+
+		return svd.getV().times(inverseS).times(svd.getU().transpose());
+	}
+
+	/**
+	 * accumulate the given state value pairs in parallel on the common fork-join pool
+	 */
+	public static LeastSquares accumulate(final StateValuePair[] stateValuePairs) {
+		if (stateValuePairs.length == 0)
+			throw new IllegalArgumentException("no state value pairs");
+
+		return accumulate(new Rows() {
+			@Override
+			public int getNumberOfRows() {
+				return stateValuePairs.length;
+			}
+
+			@Override
+			public int getDimension() {
+				return stateValuePairs[0].getState().getDimension();
+			}
+
+			@Override
+			public void addRows(LeastSquares leastSquares, int from, int to) {
+				for (int i = from; i < to; i++) {
+					leastSquares.add(stateValuePairs[i].getState().getValues(), stateValuePairs[i].getValue());
+				}
+			}
+		});
+	}
+
+	/**
+	 * accumulate the rows of a training set in parallel on the common fork-join pool, with the
+	 * input columns as features and the given ideal column as value
+	 */
+	public static LeastSquares accumulate(final TrainingSet trainingSet, final int idealColumn) {
+		return accumulate(new Rows() {
+			@Override
+			public int getNumberOfRows() {
+				return trainingSet.getNumberOfRows();
+			}
+
+			@Override
+			public int getDimension() {
+				return trainingSet.getInputSize();
+			}
+
+			@Override
+			public void addRows(LeastSquares leastSquares, int from, int to) {
+				double[] features = new double[trainingSet.getInputSize()];
+				int valueColumn = trainingSet.getInputSize() + idealColumn;
+				for (int i = from; i < to; i++) {
+					trainingSet.getInput(i, features);
+					leastSquares.add(features, trainingSet.getValue(i, valueColumn));
+				}
+			}
+		});
+	}
+
+	private static LeastSquares accumulate(Rows rows) {
+		return ForkJoinPool.commonPool().invoke(new Partition(rows, 0, rows.getNumberOfRows()));
+	}
+
+	/**
+	 * rows that can be added in ranges
+	 */
+	private interface Rows {
+		int getNumberOfRows();
+
+		int getDimension();
+
+		void addRows(LeastSquares leastSquares, int from, int to);
+	}
+
+	/**
+	 * accumulates a range of rows, splitting it in halves while it is large
+	 */
+	private static class Partition extends RecursiveTask<LeastSquares> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Rows rows;
+		private final int from, to;
+
+		private Partition(Rows rows, int from, int to) {
+			this.rows = rows;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected LeastSquares compute() {
+			if (to - from <= ROWS_PER_TASK) {
+				LeastSquares leastSquares = new LeastSquares(rows.getDimension());
+				rows.addRows(leastSquares, from, to);
+				return leastSquares;
+			}
+
+			int middle = (from + to) >>> 1;
+			Partition second = new Partition(rows, middle, to);
+			second.fork();
+			LeastSquares leastSquares = new Partition(rows, from, middle).compute();
+			leastSquares.merge(second.join());
+			return leastSquares;
+		}
+	}
+}
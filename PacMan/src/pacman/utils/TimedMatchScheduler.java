@@ -0,0 +1,283 @@
+package pacman.utils;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import pacman.controllers.Controller;
+import pacman.controllers.ControllerFactory;
+import pacman.game.Game;
+import pacman.game.Constants.GHOST;
+import pacman.game.Constants.MOVE;
+
+import static pacman.game.Constants.DELAY;
+
+/**
+ * Plays many timed matches at the same time without a thread per game or controller. A single
+ * timer thread advances every game at its own deadline, and the decisions of all controllers
+ * run on a shared pool of worker threads. As in Executor.runGameTimed, a controller that has not
+ * answered by the deadline plays its previous answer and is not asked again until its running
+ * decision finished. Each match reports how many deadlines its controllers missed.
+ */
+public class TimedMatchScheduler {
+
+	private final ScheduledExecutorService timer;
+	private final ExecutorService workers;
+	private final long tickBudget;
+
+	/**
+	 * create a scheduler with one worker per core and the competition budget of DELAY ms per tick
+	 */
+	public TimedMatchScheduler() {
+		this(Runtime.getRuntime().availableProcessors(), TimeUnit.MILLISECONDS.toNanos(DELAY));
+	}
+
+	/**
+	 * create a scheduler running the decisions on numWorkers threads, with the given budget per
+	 * tick in nanoseconds
+	 */
+	public TimedMatchScheduler(int numWorkers, long tickBudget) {
+		this.tickBudget = tickBudget;
+		timer = Executors.newSingleThreadScheduledExecutor(threadFactory("match-timer", Thread.MAX_PRIORITY));
+		workers = Executors.newFixedThreadPool(numWorkers, threadFactory("match-worker", Thread.NORM_PRIORITY));
+	}
+
+	private static ThreadFactory threadFactory(final String name, final int priority) {
+		return new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				thread.setPriority(priority);
+				return thread;
+			}
+		};
+	}
+
+	/**
+	 * start a match on the game with the given seed. The controllers must not be used by any
+	 * other match while this one is running.
+	 */
+	public CompletableFuture<MatchResult> submit(Controller<MOVE> pacManController, Controller<EnumMap<GHOST, MOVE>> ghostController, long seed) {
+		Match match = new Match(pacManController, ghostController, seed);
+		match.start();
+		return match.result;
+	}
+
+	/**
+	 * play one match per seed, all at the same time, and wait for the results
+	 */
+	public List<MatchResult> play(ControllerFactory<MOVE> pacManFactory, ControllerFactory<EnumMap<GHOST, MOVE>> ghostFactory, long[] seeds) {
+		List<CompletableFuture<MatchResult>> matches = new ArrayList<CompletableFuture<MatchResult>>(seeds.length);
+		for (long seed : seeds) {
+			matches.add(submit(pacManFactory.create(), ghostFactory.create(), seed));
+		}
+
+		List<MatchResult> results = new ArrayList<MatchResult>(seeds.length);
+		try {
+			for (CompletableFuture<MatchResult> match : matches) {
+				results.add(match.get());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("matches interrupted", e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("match failed", e.getCause());
+		}
+
+		return results;
+	}
+
+	/**
+	 * stop the timer and the worker threads; running matches are abandoned
+	 */
+	public void shutdown() {
+		timer.shutdownNow();
+		workers.shutdownNow();
+	}
+
+	/**
+	 * a single match, advanced by the timer thread
+	 */
+	private class Match implements Runnable {
+
+		private final Game game;
+		private final Decision<MOVE> pacMan;
+		private final Decision<EnumMap<GHOST, MOVE>> ghosts;
+		private final long seed;
+		private final CompletableFuture<MatchResult> result = new CompletableFuture<MatchResult>();
+		private long deadline, maxLateness;
+		private int tick;
+
+		private Match(Controller<MOVE> pacManController, Controller<EnumMap<GHOST, MOVE>> ghostController, long seed) {
+			this.seed = seed;
+			game = new Game(seed);
+			pacMan = new Decision<MOVE>(pacManController);
+			ghosts = new Decision<EnumMap<GHOST, MOVE>>(ghostController);
+		}
+
+		private void start() {
+			deadline = System.nanoTime() + tickBudget;
+			request();
+			timer.schedule(this, tickBudget, TimeUnit.NANOSECONDS);
+		}
+
+		private void request() {
+			long timeDue = System.currentTimeMillis() + TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+			pacMan.request(game.copy(), timeDue, tick);
+			ghosts.request(game.copy(), timeDue, tick);
+		}
+
+		@Override
+		public void run() {
+			try {
+				maxLateness = Math.max(maxLateness, System.nanoTime() - deadline);
+
+				game.advanceGame(pacMan.collect(tick), ghosts.collect(tick));
+				tick++;
+
+				if (game.gameOver()) {
+					result.complete(new MatchResult(seed, game.getScore(), game.getCurrentLevel(), game.getTotalTime(),
+							pacMan.missed, ghosts.missed, maxLateness));
+					return;
+				}
+
+				// the deadlines are absolute, so a late tick does not delay the following ones
+				deadline += tickBudget;
+				request();
+				timer.schedule(this, deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+			} catch (RuntimeException e) {
+				result.completeExceptionally(e);
+			}
+		}
+	}
+
+	/**
+	 * the decisions of one controller in a match, computed on the worker pool
+	 */
+	private class Decision<T> implements Runnable {
+
+		private final Controller<T> controller;
+		private final AtomicBoolean busy = new AtomicBoolean();
+		private volatile int requestedTick, answeredTick = -1;
+		private volatile T answer;
+		private Game game;
+		private long timeDue;
+		private int missed;
+
+		private Decision(Controller<T> controller) {
+			this.controller = controller;
+		}
+
+		private void request(Game game, long timeDue, int tick) {
+			// a controller still working on an earlier state skips this one
+			if (!busy.compareAndSet(false, true))
+				return;
+
+			this.game = game;
+			this.timeDue = timeDue;
+			requestedTick = tick;
+			workers.execute(this);
+		}
+
+		@Override
+		public void run() {
+			answer = snapshot(controller.decide(game, timeDue));
+			answeredTick = requestedTick;
+			busy.set(false);
+		}
+
+		/**
+		 * get the latest answer of the controller, counting a miss if it did not answer this tick
+		 */
+		private T collect(int tick) {
+			if (answeredTick != tick)
+				missed++;
+
+			return snapshot(answer);
+		}
+
+		/**
+		 * copy a move map, since controllers re-use their maps and the game writes to them
+		 */
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		private T snapshot(T move) {
+			if (move instanceof EnumMap)
+				return (T) new EnumMap((EnumMap) move);
+
+			return move;
+		}
+	}
+
+	/**
+	 * the outcome of a timed match
+	 */
+	public static class MatchResult {
+
+		private final long seed;
+		private final int score, level, ticks, pacManMissedDeadlines, ghostsMissedDeadlines;
+		private final long maxLateness;
+
+		private MatchResult(long seed, int score, int level, int ticks, int pacManMissedDeadlines, int ghostsMissedDeadlines, long maxLateness) {
+			this.seed = seed;
+			this.score = score;
+			this.level = level;
+			this.ticks = ticks;
+			this.pacManMissedDeadlines = pacManMissedDeadlines;
+			this.ghostsMissedDeadlines = ghostsMissedDeadlines;
+			this.maxLateness = maxLateness;
+		}
+
+		/** get the seed of the game */
+		public long getSeed() {
+			return seed;
+		}
+
+		/** get the final score */
+		public int getScore() {
+			return score;
+		}
+
+		/** get the level the game ended in */
+		public int getLevel() {
+			return level;
+		}
+
+		/** get the number of ticks played */
+		public int getTicks() {
+			return ticks;
+		}
+
+		/** get the number of ticks Ms Pac-Man's controller did not answer in time */
+		public int getPacManMissedDeadlines() {
+			return pacManMissedDeadlines;
+		}
+
+		/** get the number of ticks the ghosts controller did not answer in time */
+		public int getGhostsMissedDeadlines() {
+			return ghostsMissedDeadlines;
+		}
+
+		/** get the largest delay of a tick behind its deadline, in nanoseconds */
+		public long getMaxLateness() {
+			return maxLateness;
+		}
+
+		@Override
+		public String toString() {
+			return "seed " + seed + ", score " + score + ", level " + level + ", ticks " + ticks + ", missed deadlines "
+					+ pacManMissedDeadlines + "/" + ghostsMissedDeadlines;
+		}
+	}
+}
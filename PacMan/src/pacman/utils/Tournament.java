@@ -0,0 +1,441 @@
+package pacman.utils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.zip.CRC32;
+
+import pacman.controllers.AController;
+import pacman.controllers.Controller;
+import pacman.controllers.ControllerFactory;
+import pacman.controllers.NeuralNetworkController;
+import pacman.game.Constants;
+import pacman.game.Game;
+import pacman.game.Constants.GHOST;
+import pacman.game.Constants.MOVE;
+import pacman.game.internal.AStar;
+import pacman.game.internal.GameRandom;
+import pacman.game.internal.Ghost;
+import pacman.game.internal.Maze;
+import pacman.game.internal.Node;
+import pacman.game.internal.PacMan;
+import pacman.game.internal.PathsCache;
+
+/**
+ * Plays every Ms Pac-Man controller against every ghost controller over a shared set of seeds.
+ * The games of all pairings are split into small tasks on a work-stealing pool, and every worker
+ * thread creates each controller once and re-uses it for all games it plays.
+ *
+ * The scores of every pairing are cached under the fingerprints of both controllers, the seed
+ * set and the byte code of the game engine and the feature classes, optionally in a file. A re-run
+ * only plays the pairings whose controllers changed. Changes to any other code a controller depends
+ * on are not detected; pass a fingerprint that covers it, or delete the cache file.
+ */
+public class Tournament {
+
+	private static final int GAMES_PER_TASK = 4;	// games played by a task without splitting it further
+
+	// code shared by all controllers whose changes invalidate every cached score
+	private static final Class<?>[] SHARED_CLASSES = { Game.class, Constants.class, AStar.class, GameRandom.class, Ghost.class,
+			Maze.class, Node.class, PacMan.class, PathsCache.class, Controller.class, AController.class,
+			NeuralNetworkController.class, FeatureExtractor.class, FeatureContext.class, FeatureUtils.class, Vector.class,
+			Tournament.class };
+
+	private final long[] seeds;
+	private final String seedsKey;
+	private final ForkJoinPool pool;
+	private final File cacheFile;
+	private final Map<String, int[]> cache = new HashMap<String, int[]>();
+	private final List<Entrant<MOVE>> pacMen = new ArrayList<Entrant<MOVE>>();
+	private final List<Entrant<EnumMap<GHOST, MOVE>>> ghosts = new ArrayList<Entrant<EnumMap<GHOST, MOVE>>>();
+	private final ThreadLocal<Worker> workers = new ThreadLocal<Worker>() {
+		@Override
+		protected Worker initialValue() {
+			return new Worker();
+		}
+	};
+
+	/**
+	 * create a tournament over the given seeds, using all cores and an in-memory cache only
+	 */
+	public Tournament(long[] seeds) {
+		this(seeds, Runtime.getRuntime().availableProcessors(), null);
+	}
+
+	/**
+	 * create a tournament over the given seeds, playing on parallelism threads. The scores are
+	 * cached in cacheFile if it is not null, so they survive between runs.
+	 */
+	public Tournament(long[] seeds, int parallelism, File cacheFile) {
+		this.seeds = seeds.clone();
+		this.cacheFile = cacheFile;
+		pool = new ForkJoinPool(parallelism);
+
+		CRC32 crc = new CRC32();
+		for (long seed : seeds) {
+			crc.update(Long.toString(seed).getBytes());
+			crc.update(',');
+		}
+		for (Class<?> type : SHARED_CLASSES) {
+			update(crc, type);
+		}
+		seedsKey = seeds.length + ":" + Long.toHexString(crc.getValue());
+
+		if (cacheFile != null && cacheFile.isFile())
+			loadCache();
+	}
+
+	/**
+	 * add a Ms Pac-Man controller, fingerprinted by its class and parameters
+	 */
+	public void addPacMan(String name, ControllerFactory<MOVE> factory) {
+		addPacMan(name, factory, fingerprint(factory.create()));
+	}
+
+	/**
+	 * add a Ms Pac-Man controller with a fingerprint that changes whenever the controller does,
+	 * e.g. the contents of the file it is loaded from
+	 */
+	public void addPacMan(String name, ControllerFactory<MOVE> factory, String fingerprint) {
+		pacMen.add(new Entrant<MOVE>(name, factory, fingerprint));
+	}
+
+	/**
+	 * add a ghosts controller, fingerprinted by its class and parameters
+	 */
+	public void addGhosts(String name, ControllerFactory<EnumMap<GHOST, MOVE>> factory) {
+		addGhosts(name, factory, fingerprint(factory.create()));
+	}
+
+	/**
+	 * add a ghosts controller with a fingerprint that changes whenever the controller does
+	 */
+	public void addGhosts(String name, ControllerFactory<EnumMap<GHOST, MOVE>> factory, String fingerprint) {
+		ghosts.add(new Entrant<EnumMap<GHOST, MOVE>>(name, factory, fingerprint));
+	}
+
+	/**
+	 * play all pairings that are not cached yet and return the cross-table of all pairings
+	 */
+	public CrossTable run() {
+		int[][][] scores = new int[pacMen.size()][ghosts.size()][];
+		boolean[][] cached = new boolean[pacMen.size()][ghosts.size()];
+		final List<Games> tasks = new ArrayList<Games>();
+
+		for (int p = 0; p < pacMen.size(); p++) {
+			for (int g = 0; g < ghosts.size(); g++) {
+				scores[p][g] = cache.get(key(pacMen.get(p), ghosts.get(g)));
+				cached[p][g] = scores[p][g] != null;
+				if (!cached[p][g]) {
+					scores[p][g] = new int[seeds.length];
+					tasks.add(new Games(seeds, workers, pacMen.get(p), ghosts.get(g), scores[p][g], 0, seeds.length));
+				}
+			}
+		}
+
+		if (!tasks.isEmpty()) {
+			pool.invoke(new RecursiveAction() {
+				@Override
+				protected void compute() {
+					invokeAll(tasks);
+				}
+			});
+
+			for (Games task : tasks) {
+				cache.put(key(task.pacMan, task.ghosts), task.scores);
+			}
+			if (cacheFile != null)
+				saveCache();
+		}
+
+		return new CrossTable(names(pacMen), names(ghosts), scores, cached);
+	}
+
+	/**
+	 * stop the worker threads of this tournament
+	 */
+	public void shutdown() {
+		pool.shutdown();
+	}
+
+	/**
+	 * get a fingerprint that changes with the byte code of the controller's class and, where
+	 * available, with its parameters
+	 */
+	public static String fingerprint(Controller<?> controller) {
+		Class<?> type = controller.getClass();
+		CRC32 crc = new CRC32();
+		update(crc, type);
+
+		double[] parameters = null;
+		if (controller instanceof AController && ((AController) controller).getPolicyParameters() != null)
+			parameters = ((AController) controller).getPolicyParameters().getValues();
+		else if (controller instanceof NeuralNetworkController)
+			parameters = ((NeuralNetworkController) controller).getValueFunctionParameters();
+
+		String fingerprint = type.getName() + "@" + Long.toHexString(crc.getValue());
+		if (parameters != null)
+			fingerprint += "#" + Integer.toHexString(Arrays.hashCode(parameters));
+
+		return fingerprint;
+	}
+
+	/**
+	 * add the byte code of the given class to crc
+	 */
+	private static void update(CRC32 crc, Class<?> type) {
+		InputStream in = type.getResourceAsStream(type.getName().substring(type.getName().lastIndexOf('.') + 1) + ".class");
+		if (in == null)
+			return;
+
+		try {
+			byte[] buffer = new byte[4096];
+			for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+				crc.update(buffer, 0, read);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			try { in.close(); } catch (IOException e) { }
+		}
+	}
+
+	private static <T> String[] names(List<Entrant<T>> entrants) {
+		String[] names = new String[entrants.size()];
+		for (int i = 0; i < names.length; i++) {
+			names[i] = entrants.get(i).name;
+		}
+		return names;
+	}
+
+	private String key(Entrant<?> pacMan, Entrant<?> ghosts) {
+		return pacMan.fingerprint + "|" + ghosts.fingerprint + "|" + seedsKey;
+	}
+
+	/**
+	 * read the cache file: one pairing per line, the key and the scores separated by a tab
+	 */
+	private void loadCache() {
+		BufferedReader br = null;
+		try {
+			br = new BufferedReader(new FileReader(cacheFile));
+			for (String line = br.readLine(); line != null; line = br.readLine()) {
+				int tab = line.lastIndexOf('\t');
+				if (tab < 0)
+					continue;
+
+				String[] values = line.substring(tab + 1).split(",");
+				int[] scores = new int[values.length];
+				for (int i = 0; i < values.length; i++) {
+					scores[i] = Integer.parseInt(values[i]);
+				}
+				cache.put(line.substring(0, tab), scores);
+			}
+		} catch (IOException | NumberFormatException e) {
+			e.printStackTrace();	// an unreadable cache only means that pairings are played again
+		} finally {
+			try { if (br != null) br.close(); } catch (IOException e) { }
+		}
+	}
+
+	/**
+	 * write the cache to a temporary file first, so an interrupted run never leaves a broken cache
+	 */
+	private void saveCache() {
+		File temp = new File(cacheFile.getPath() + ".tmp");
+		try {
+			PrintWriter out = new PrintWriter(temp);
+			try {
+				for (Map.Entry<String, int[]> entry : cache.entrySet()) {
+					StringBuilder line = new StringBuilder(entry.getKey()).append('\t');
+					for (int i = 0; i < entry.getValue().length; i++) {
+						line.append(i == 0 ? "" : ",").append(entry.getValue()[i]);
+					}
+					out.println(line);
+				}
+			} finally {
+				out.close();
+			}
+			Files.move(temp.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * a controller taking part in the tournament
+	 */
+	private static class Entrant<T> {
+
+		private final String name;
+		private final ControllerFactory<T> factory;
+		private final String fingerprint;
+
+		private Entrant(String name, ControllerFactory<T> factory, String fingerprint) {
+			this.name = name;
+			this.factory = factory;
+			this.fingerprint = fingerprint;
+		}
+	}
+
+	/**
+	 * the games of one pairing for a range of seeds, split in halves until the range is small
+	 */
+	private static class Games extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final long[] seeds;
+		private final ThreadLocal<Worker> workers;
+		private final Entrant<MOVE> pacMan;
+		private final Entrant<EnumMap<GHOST, MOVE>> ghosts;
+		private final int[] scores;
+		private final int from, to;
+
+		private Games(long[] seeds, ThreadLocal<Worker> workers, Entrant<MOVE> pacMan, Entrant<EnumMap<GHOST, MOVE>> ghosts, int[] scores, int from, int to) {
+			this.seeds = seeds;
+			this.workers = workers;
+			this.pacMan = pacMan;
+			this.ghosts = ghosts;
+			this.scores = scores;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= GAMES_PER_TASK) {
+				Worker worker = workers.get();
+				for (int i = from; i < to; i++) {
+					scores[i] = worker.play(pacMan, ghosts, seeds[i]);
+				}
+			} else {
+				int middle = (from + to) >>> 1;
+				invokeAll(new Games(seeds, workers, pacMan, ghosts, scores, from, middle), new Games(seeds, workers, pacMan, ghosts, scores, middle, to));
+			}
+		}
+	}
+
+	/**
+	 * the game and the warm controllers of a single worker thread
+	 */
+	private static class Worker {
+
+		private final Map<Entrant<?>, Controller<?>> controllers = new IdentityHashMap<Entrant<?>, Controller<?>>();
+		private Game game;
+
+		@SuppressWarnings("unchecked")
+		private <T> Controller<T> controller(Entrant<T> entrant) {
+			Controller<T> controller = (Controller<T>) controllers.get(entrant);
+			if (controller == null) {
+				controller = entrant.factory.create();
+				controllers.put(entrant, controller);
+			}
+			return controller;
+		}
+
+		private int play(Entrant<MOVE> pacMan, Entrant<EnumMap<GHOST, MOVE>> ghosts, long seed) {
+			if (game == null)
+				game = new Game(seed);
+			else
+				game.reset(seed);
+
+			Controller<MOVE> pacManController = controller(pacMan);
+			Controller<EnumMap<GHOST, MOVE>> ghostController = controller(ghosts);
+			while (!game.gameOver()) {
+				game.advanceGame(pacManController.getMove(game.copy(), -1), ghostController.getMove(game.copy(), -1));
+			}
+
+			return game.getScore();
+		}
+	}
+
+	/**
+	 * the scores of all pairings, with Ms Pac-Man controllers as rows and ghost controllers as
+	 * columns, as they were when the tournament was run
+	 */
+	public static class CrossTable {
+
+		private final String[] pacMen, ghosts;
+		private final ExperimentRunner.Statistics[][] statistics;
+		private final boolean[][] cached;
+
+		private CrossTable(String[] pacMen, String[] ghosts, int[][][] scores, boolean[][] cached) {
+			this.pacMen = pacMen;
+			this.ghosts = ghosts;
+			this.cached = cached;
+			statistics = new ExperimentRunner.Statistics[scores.length][];
+			for (int p = 0; p < scores.length; p++) {
+				statistics[p] = new ExperimentRunner.Statistics[scores[p].length];
+				for (int g = 0; g < scores[p].length; g++) {
+					statistics[p][g] = new ExperimentRunner.Statistics(scores[p][g].length);
+					for (int score : scores[p][g]) {
+						statistics[p][g].add(score);
+					}
+				}
+			}
+		}
+
+		/** get the statistics of the scores of a pairing */
+		public ExperimentRunner.Statistics getStatistics(int pacMan, int ghosts) {
+			return statistics[pacMan][ghosts];
+		}
+
+		/** get the half-width of the 95% confidence interval of the mean score of a pairing */
+		public double getConfidenceInterval(int pacMan, int ghosts) {
+			return 1.96 * statistics[pacMan][ghosts].getStandardError();
+		}
+
+		/** get whether the scores of a pairing were taken from the cache */
+		public boolean wasCached(int pacMan, int ghosts) {
+			return cached[pacMan][ghosts];
+		}
+
+		/**
+		 * format the table with the mean score and its 95% confidence interval in every cell;
+		 * cached pairings are marked with a star
+		 */
+		@Override
+		public String toString() {
+			int width = 10;
+			for (String name : pacMen) {
+				width = Math.max(width, name.length());
+			}
+			int cellWidth = 20;
+			for (String name : ghosts) {
+				cellWidth = Math.max(cellWidth, name.length() + 2);
+			}
+
+			StringBuilder table = new StringBuilder(String.format("%-" + width + "s", ""));
+			for (String name : ghosts) {
+				table.append(String.format("%" + cellWidth + "s", name));
+			}
+			table.append('\n');
+
+			for (int p = 0; p < pacMen.length; p++) {
+				table.append(String.format("%-" + width + "s", pacMen[p]));
+				for (int g = 0; g < ghosts.length; g++) {
+					String cell = String.format("%.0f +- %.0f%s", statistics[p][g].getMean(), getConfidenceInterval(p, g), cached[p][g] ? "*" : "");
+					table.append(String.format("%" + cellWidth + "s", cell));
+				}
+				table.append('\n');
+			}
+
+			return table.toString();
+		}
+	}
+}
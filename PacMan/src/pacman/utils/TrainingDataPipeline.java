@@ -0,0 +1,249 @@
+package pacman.utils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import pacman.controllers.NeuralNetworkController;
+import pacman.game.Game;
+import pacman.game.Constants.MOVE;
+import pacman.game.util.ReplayReader;
+
+/**
+ * Turns replayed states into training data for value function approximation. For every state
+ * and every move Ms Pac-Man can make in it, one row is produced: the features of the move as
+ * input and the estimate of the neural network value function as target.
+ *
+ * The states are split into shards (the segments of a binary replay, or chunks of a list of text
+ * states) that are labelled in parallel on a fork-join pool. Each worker owns its game, its
+ * feature extractor and its copy of the network. The rows are handed to the sink in the order
+ * of the states, from one thread at a time, so the sink does not need to be thread-safe and the
+ * output does not depend on the number of threads.
+ */
+public class TrainingDataPipeline {
+
+	private static final int STATES_PER_CHUNK = 256;	// shard size for lists of text states
+
+	/**
+	 * receives the rows produced by the pipeline
+	 */
+	public interface RowSink {
+		void addRow(double[] input, double[] ideal) throws IOException;
+	}
+
+	private final NeuralNetworkController valueFunction;
+	private final boolean extended;
+	private final ForkJoinPool pool;
+
+	/**
+	 * create a pipeline labelling with the given network and producing the basic features, on
+	 * the common fork-join pool
+	 */
+	public TrainingDataPipeline(NeuralNetworkController valueFunction) {
+		this(valueFunction, false, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * create a pipeline labelling with the given network and producing the extended features
+	 * if extended is set, on the given pool
+	 */
+	public TrainingDataPipeline(NeuralNetworkController valueFunction, boolean extended, ForkJoinPool pool) {
+		this.valueFunction = valueFunction;
+		this.extended = extended;
+		this.pool = pool;
+	}
+
+	/** get the number of input columns of the rows produced */
+	public int getInputSize() {
+		return extended ? FeatureExtractor.NUM_EXTENDED_FEATURES : FeatureExtractor.NUM_FEATURES;
+	}
+
+	/**
+	 * label all states of a binary replay and return the number of rows produced
+	 */
+	public long run(final ReplayReader replay, RowSink sink) throws IOException {
+		return run(new Source() {
+			@Override
+			public int getNumberOfShards() {
+				return replay.getNumberOfSegments();
+			}
+
+			@Override
+			public void label(int shard, final Worker worker) {
+				replay.scanSegment(shard, worker.game, new ReplayReader.StateVisitor() {
+					@Override
+					public void visit(int stateIndex, Game game) {
+						worker.label(game);
+					}
+				});
+			}
+		}, sink);
+	}
+
+	/**
+	 * label a list of states in the text format of Game.getGameState() and return the number
+	 * of rows produced
+	 */
+	public long run(final List<String> states, RowSink sink) throws IOException {
+		return run(new Source() {
+			@Override
+			public int getNumberOfShards() {
+				return (states.size() + STATES_PER_CHUNK - 1) / STATES_PER_CHUNK;
+			}
+
+			@Override
+			public void label(int shard, Worker worker) {
+				int end = Math.min(states.size(), (shard + 1) * STATES_PER_CHUNK);
+				for (int i = shard * STATES_PER_CHUNK; i < end; i++) {
+					worker.game.setGameState(states.get(i));
+					worker.label(worker.game);
+				}
+			}
+		}, sink);
+	}
+
+	private long run(final Source source, RowSink sink) throws IOException {
+		final Output output = new Output(sink, source.getNumberOfShards());
+		final AtomicInteger nextShard = new AtomicInteger();
+
+		// the shards are claimed in order, so only few finished shards wait for earlier ones
+		List<RecursiveAction> workers = new ArrayList<RecursiveAction>();
+		for (int w = 0; w < Math.max(1, Math.min(pool.getParallelism(), output.numShards)); w++) {
+			workers.add(new RecursiveAction() {
+				@Override
+				protected void compute() {
+					Worker worker = new Worker();
+					for (int shard = nextShard.getAndIncrement(); shard < output.numShards && !output.failed(); shard = nextShard.getAndIncrement()) {
+						worker.rows = new Rows(getInputSize());
+						source.label(shard, worker);
+						output.commit(shard, worker.rows);
+					}
+				}
+			});
+		}
+
+		pool.invoke(new RecursiveAction() {
+			@Override
+			protected void compute() {
+				invokeAll(workers);
+			}
+		});
+
+		if (output.failure != null)
+			throw output.failure;
+
+		return output.numRows;
+	}
+
+	/**
+	 * the states to be labelled, split into shards
+	 */
+	private interface Source {
+		int getNumberOfShards();
+
+		void label(int shard, Worker worker);
+	}
+
+	/**
+	 * the game, the network and the buffers of a single worker
+	 */
+	private class Worker {
+
+		private final Game game = new Game(0);
+		private final NeuralNetworkController network = valueFunction.copy();
+		private final double[] extendedFeatures = new double[FeatureExtractor.NUM_EXTENDED_FEATURES];
+		private Rows rows;
+
+		private void label(Game game) {
+			FeatureExtractor extractor = FeatureExtractor.forCurrentThread();
+			FeatureContext context = extractor.prepare(game);
+			int currentNode = game.getPacmanCurrentNodeIndex();
+
+			for (MOVE move : game.getPossibleMoves(currentNode)) {
+				double[] features = extractor.getFeatures(context, currentNode, move);
+				double target = network.getValueFunctionEstimation(new Vector(features));
+
+				if (extended) {
+					FeatureExtractor.extendFeatures(features, extendedFeatures);
+					rows.add(extendedFeatures, target);
+				} else {
+					rows.add(features, target);
+				}
+			}
+		}
+	}
+
+	/**
+	 * the rows of one shard, stored row by row
+	 */
+	private static class Rows {
+
+		private final int inputSize;
+		private double[] inputs;
+		private double[] targets = new double[64];
+		private int count;
+
+		private Rows(int inputSize) {
+			this.inputSize = inputSize;
+			inputs = new double[64 * inputSize];
+		}
+
+		private void add(double[] input, double target) {
+			if (count == targets.length) {
+				targets = Arrays.copyOf(targets, 2 * count);
+				inputs = Arrays.copyOf(inputs, 2 * count * inputSize);
+			}
+			System.arraycopy(input, 0, inputs, count * inputSize, inputSize);
+			targets[count++] = target;
+		}
+	}
+
+	/**
+	 * hands the rows of the shards to the sink in the order of the shards
+	 */
+	private static class Output {
+
+		private final RowSink sink;
+		private final int numShards;
+		private final Rows[] pending;
+		private int nextShard;
+		private long numRows;
+		private volatile IOException failure;
+
+		private Output(RowSink sink, int numShards) {
+			this.sink = sink;
+			this.numShards = numShards;
+			pending = new Rows[numShards];
+		}
+
+		private boolean failed() {
+			return failure != null;
+		}
+
+		private synchronized void commit(int shard, Rows rows) {
+			pending[shard] = rows;
+
+			double[] input = new double[rows.inputSize];
+			double[] ideal = new double[1];
+			try {
+				for (; nextShard < numShards && pending[nextShard] != null && failure == null; nextShard++) {
+					Rows next = pending[nextShard];
+					pending[nextShard] = null;
+
+					for (int r = 0; r < next.count; r++) {
+						System.arraycopy(next.inputs, r * next.inputSize, input, 0, next.inputSize);
+						ideal[0] = next.targets[r];
+						sink.addRow(input, ideal);
+					}
+					numRows += next.count;
+				}
+			} catch (IOException e) {
+				failure = e;
+			}
+		}
+	}
+}
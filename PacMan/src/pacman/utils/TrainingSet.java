@@ -0,0 +1,222 @@
+package pacman.utils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.encog.ml.data.MLData;
+import org.encog.ml.data.MLDataPair;
+import org.encog.ml.data.MLDataSet;
+import org.encog.ml.data.basic.BasicMLDataPair;
+
+/**
+ * A read-only training set in the binary format written by TrainingSetWriter. The file is mapped
+ * into memory, so opening it takes the same time for any number of rows, and values are only read
+ * from disk when they are used. Every column is viewed as a float or double buffer, no values are
+ * copied.
+ *
+ * The training set is an Encog MLDataSet, so it can be passed to the Encog trainers in place of a
+ * BasicMLDataSet. It is safe to read from several threads; openAdditional() returns the training
+ * set itself.
+ *
+ * A single column must not be larger than 2 GB (536 million rows of float32 values).
+ */
+public class TrainingSet implements MLDataSet, Closeable {
+
+	private final int inputSize, idealSize, valueSize;
+	private final int numRows;
+	private final FloatBuffer[] floatColumns;
+	private final DoubleBuffer[] doubleColumns;
+
+	/**
+	 * map the training set in the given file
+	 */
+	public TrainingSet(String fileName) throws IOException {
+		FileChannel channel = FileChannel.open(new File(fileName).toPath(), StandardOpenOption.READ);
+		try {
+			ByteBuffer header = ByteBuffer.allocate(TrainingSetWriter.HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+			while (header.hasRemaining()) {
+				if (channel.read(header, header.position()) < 0)
+					throw new IOException(fileName + " is not a training set");
+			}
+			header.flip();
+
+			if (header.getInt() != TrainingSetWriter.MAGIC)
+				throw new IOException(fileName + " is not a training set");
+			if (header.get() != TrainingSetWriter.VERSION)
+				throw new IOException("unsupported version of training set " + fileName);
+
+			valueSize = header.get();
+			header.getShort();
+			inputSize = header.getInt();
+			idealSize = header.getInt();
+			long rows = header.getLong();
+
+			if (valueSize != TrainingSetWriter.FLOAT32 && valueSize != TrainingSetWriter.FLOAT64)
+				throw new IOException("unsupported value size in training set " + fileName);
+			if (rows * valueSize > Integer.MAX_VALUE)
+				throw new IOException("columns of training set " + fileName + " are too large to be mapped");
+
+			int numColumns = inputSize + idealSize;
+			long columnLength = rows * valueSize;
+			if (channel.size() < TrainingSetWriter.HEADER_LENGTH + numColumns * columnLength)
+				throw new IOException("training set " + fileName + " is truncated");
+
+			numRows = (int) rows;
+			floatColumns = valueSize == TrainingSetWriter.FLOAT32 ? new FloatBuffer[numColumns] : null;
+			doubleColumns = valueSize == TrainingSetWriter.FLOAT64 ? new DoubleBuffer[numColumns] : null;
+
+			// the mappings stay valid after the channel is closed
+			for (int c = 0; c < numColumns; c++) {
+				MappedByteBuffer column = channel.map(FileChannel.MapMode.READ_ONLY, TrainingSetWriter.HEADER_LENGTH + c * columnLength, columnLength);
+				column.order(ByteOrder.LITTLE_ENDIAN);
+				if (floatColumns != null)
+					floatColumns[c] = column.asFloatBuffer();
+				else
+					doubleColumns[c] = column.asDoubleBuffer();
+			}
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * check whether the given file starts like a training set written by TrainingSetWriter
+	 */
+	public static boolean isTrainingSet(String fileName) throws IOException {
+		FileChannel channel = FileChannel.open(new File(fileName).toPath(), StandardOpenOption.READ);
+		try {
+			ByteBuffer magic = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+			while (magic.hasRemaining()) {
+				if (channel.read(magic, magic.position()) < 0)
+					return false;
+			}
+			return magic.getInt(0) == TrainingSetWriter.MAGIC;
+		} finally {
+			channel.close();
+		}
+	}
+
+	/** get the number of rows */
+	public int getNumberOfRows() {
+		return numRows;
+	}
+
+	/**
+	 * get the value in the given row and column, where the ideal columns follow the input columns
+	 */
+	public double getValue(int row, int column) {
+		return floatColumns != null ? floatColumns[column].get(row) : doubleColumns[column].get(row);
+	}
+
+	/**
+	 * get the input values of the given row into input
+	 */
+	public void getInput(int row, double[] input) {
+		for (int c = 0; c < inputSize; c++) {
+			input[c] = getValue(row, c);
+		}
+	}
+
+	/**
+	 * get the ideal values of the given row into ideal
+	 */
+	public void getIdeal(int row, double[] ideal) {
+		for (int c = 0; c < idealSize; c++) {
+			ideal[c] = getValue(row, inputSize + c);
+		}
+	}
+
+	@Override
+	public int getInputSize() {
+		return inputSize;
+	}
+
+	@Override
+	public int getIdealSize() {
+		return idealSize;
+	}
+
+	@Override
+	public boolean isSupervised() {
+		return idealSize > 0;
+	}
+
+	@Override
+	public long getRecordCount() {
+		return numRows;
+	}
+
+	/**
+	 * get the given row into pair, whose arrays must have the sizes of the training set
+	 */
+	@Override
+	public void getRecord(long index, MLDataPair pair) {
+		getInput((int) index, pair.getInputArray());
+		if (idealSize > 0)
+			getIdeal((int) index, pair.getIdealArray());
+	}
+
+	@Override
+	public MLDataSet openAdditional() {
+		return this;
+	}
+
+	@Override
+	public Iterator<MLDataPair> iterator() {
+		return new Iterator<MLDataPair>() {
+			private int row;
+
+			@Override
+			public boolean hasNext() {
+				return row < numRows;
+			}
+
+			@Override
+			public MLDataPair next() {
+				if (row >= numRows)
+					throw new NoSuchElementException();
+
+				MLDataPair pair = BasicMLDataPair.createPair(inputSize, idealSize);
+				getRecord(row++, pair);
+				return pair;
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	@Override
+	public void add(MLData data) {
+		throw new UnsupportedOperationException("training set is read-only");
+	}
+
+	@Override
+	public void add(MLData inputData, MLData idealData) {
+		throw new UnsupportedOperationException("training set is read-only");
+	}
+
+	@Override
+	public void add(MLDataPair inputData) {
+		throw new UnsupportedOperationException("training set is read-only");
+	}
+
+	/**
+	 * nothing to release, the mapping is released when the training set is garbage collected
+	 */
+	@Override
+	public void close() {
+	}
+}
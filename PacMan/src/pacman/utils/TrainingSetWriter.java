@@ -0,0 +1,178 @@
+package pacman.utils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes a training set in a binary, column-major format: after a header, all values of the
+ * first column follow, then all values of the second column and so on, each as float32 or
+ * float64 in little-endian byte order. The input columns come first, the ideal columns last.
+ *
+ * Rows are added one at a time. Since the number of rows is only known at the end, every column
+ * is spooled to its own temporary file next to the training set, and the columns are joined when
+ * the writer is closed. The memory needed does not depend on the number of rows. If producing the
+ * rows fails, abort() discards them, so no incomplete training set is written.
+ *
+ * Header (little-endian, HEADER_LENGTH bytes): int MAGIC, byte VERSION, byte bytes per value,
+ * short 0, int number of input columns, int number of ideal columns, long number of rows.
+ */
+public class TrainingSetWriter implements Closeable, TrainingDataPipeline.RowSink {
+
+	public static final int FLOAT32 = 4, FLOAT64 = 8;
+
+	static final int MAGIC = 0x53544D50; // "PMTS"
+	static final byte VERSION = 1;
+	static final int HEADER_LENGTH = 24;
+
+	private static final int BUFFER_SIZE = 1 << 14;
+
+	private final File file;
+	private final int inputSize, idealSize, valueSize;
+	private final File[] spoolFiles;
+	private final FileChannel[] spools;
+	private final ByteBuffer[] buffers;
+	private long numRows;
+	private boolean closed;
+
+	/**
+	 * create a training set file with the given numbers of input and ideal columns, storing every
+	 * value in valueSize bytes (FLOAT32 or FLOAT64)
+	 */
+	public TrainingSetWriter(String fileName, int inputSize, int idealSize, int valueSize) throws IOException {
+		if (valueSize != FLOAT32 && valueSize != FLOAT64)
+			throw new IllegalArgumentException("values must be FLOAT32 or FLOAT64");
+
+		this.file = new File(fileName);
+		this.inputSize = inputSize;
+		this.idealSize = idealSize;
+		this.valueSize = valueSize;
+
+		int numColumns = inputSize + idealSize;
+		spoolFiles = new File[numColumns];
+		spools = new FileChannel[numColumns];
+		buffers = new ByteBuffer[numColumns];
+
+		File directory = file.getAbsoluteFile().getParentFile();
+		try {
+			for (int c = 0; c < numColumns; c++) {
+				spoolFiles[c] = File.createTempFile(file.getName() + ".column" + c + "-", ".tmp", directory);
+				spools[c] = FileChannel.open(spoolFiles[c].toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+				buffers[c] = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			}
+		} catch (IOException e) {
+			deleteSpools();
+			throw e;
+		}
+	}
+
+	/**
+	 * add a row
+	 */
+	@Override
+	public void addRow(double[] input, double[] ideal) throws IOException {
+		if (closed)
+			throw new IllegalStateException("training set writer is closed");
+		if (input.length != inputSize || ideal.length != idealSize)
+			throw new IllegalArgumentException("row does not match the columns of the training set");
+
+		for (int c = 0; c < inputSize; c++) {
+			put(c, input[c]);
+		}
+		for (int c = 0; c < idealSize; c++) {
+			put(inputSize + c, ideal[c]);
+		}
+		numRows++;
+	}
+
+	private void put(int column, double value) throws IOException {
+		ByteBuffer buffer = buffers[column];
+		if (!buffer.hasRemaining())
+			flush(column);
+
+		if (valueSize == FLOAT32)
+			buffer.putFloat((float) value);
+		else
+			buffer.putDouble(value);
+	}
+
+	private void flush(int column) throws IOException {
+		ByteBuffer buffer = buffers[column];
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			spools[column].write(buffer);
+		}
+		buffer.clear();
+	}
+
+	/** get the number of rows added so far */
+	public long getNumberOfRows() {
+		return numRows;
+	}
+
+	/**
+	 * write the header, join the columns into the training set and delete the spool files
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed)
+			return;
+		closed = true;
+
+		boolean complete = false;
+		FileChannel out = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+				StandardOpenOption.WRITE);
+		try {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+			header.putInt(MAGIC).put(VERSION).put((byte) valueSize).putShort((short) 0);
+			header.putInt(inputSize).putInt(idealSize).putLong(numRows);
+			header.flip();
+			while (header.hasRemaining()) {
+				out.write(header);
+			}
+
+			for (int c = 0; c < spools.length; c++) {
+				flush(c);
+				long size = spools[c].size();
+				for (long position = 0; position < size;) {
+					position += spools[c].transferTo(position, size - position, out);
+				}
+			}
+			complete = true;
+		} finally {
+			out.close();
+			deleteSpools();
+			if (!complete)
+				Files.deleteIfExists(file.toPath());
+		}
+	}
+
+	/**
+	 * discard the rows added and delete the spool files without writing the training set, e.g.
+	 * if producing the rows failed; the writer is closed afterwards
+	 */
+	public void abort() {
+		if (closed)
+			return;
+		closed = true;
+
+		deleteSpools();
+	}
+
+	private void deleteSpools() {
+		for (int c = 0; c < spoolFiles.length; c++) {
+			try {
+				if (spools[c] != null)
+					spools[c].close();
+			} catch (IOException e) {
+			}
+			if (spoolFiles[c] != null && !spoolFiles[c].delete())
+				spoolFiles[c].deleteOnExit();
+		}
+	}
+}
@@ -6,34 +6,59 @@ import java.util.Random;
 import Jama.Matrix;
 import pacman.controllers.AController;
 import pacman.controllers.Controller;
+import pacman.controllers.ControllerFactory;
 import pacman.controllers.examples.StarterGhosts;
-import pacman.game.Game;
 import pacman.game.Constants.GHOST;
 import pacman.game.Constants.MOVE;
 import pacman.game.internal.Maze;
 
 public class Utils {
 
+	private static final Random GRADIENT_RANDOM = new Random(0);
+
+	private static final ControllerFactory<EnumMap<GHOST, MOVE>> STARTER_GHOSTS = new ControllerFactory<EnumMap<GHOST, MOVE>>() {
+		@Override
+		public Controller<EnumMap<GHOST, MOVE>> create() {
+			return new StarterGhosts();
+		}
+	};
+
 	/**
-	 * get the policy gradient of the current pacmanController using finite-difference
+	 * get the policy gradient of the current pacmanController using finite-difference, drawing the
+	 * variations from a generator with a fixed seed shared by all calls, so a training run is
+	 * repeatable
 	 */
 	public static Vector getGradient(AController pacmanController, int numTrials) {
+		return getGradient(pacmanController, numTrials, GRADIENT_RANDOM);
+	}
+	
+	/**
+	 * get the policy gradient of the current pacmanController using finite-difference. The parameter
+	 * variations are drawn from rnd, so the estimation is reproducible for a seeded generator. All
+	 * variations are evaluated together as a single batch.
+	 */
+	public static Vector getGradient(AController pacmanController, int numTrials, Random rnd) {
 		Vector initialParameters = pacmanController.getPolicyParameters();
-		double initialEvaluation = evalPolicy(pacmanController, numTrials);
 		int dimension = initialParameters.getDimension();
 		
-		int runs = 2 * initialParameters.getDimension();
+		// one controller for the initial parameters followed by one for each variation
+		int runs = 2 * dimension;
 		double[][] parametersVariations = new double[runs][];
-		double[][] parametersEvaluations = new double[runs][1];
+		AController[] controllers = new AController[runs + 1];
+		controllers[0] = pacmanController.copy();
 		for (int i = 0; i < runs; i++) {
-			Vector parametersVariation = Vector.getRandomVector(dimension, -15, 15);
-			Vector newParameters = initialParameters.copy().add(parametersVariation);
-			pacmanController.setPolicyParameters(newParameters);
+			Vector parametersVariation = Vector.getRandomVector(dimension, -15, 15, rnd);
 			parametersVariations[i] = parametersVariation.getValues();
-			parametersEvaluations[i][0] = evalPolicy(pacmanController, numTrials) - initialEvaluation;
+			controllers[i + 1] = pacmanController.copy();
+			controllers[i + 1].setPolicyParameters(initialParameters.copy().add(parametersVariation));
 		}
 		
-		pacmanController.setPolicyParameters(initialParameters);
+		int[][] scores = EvaluationEngine.getSharedEngine().evaluate(controllers, STARTER_GHOSTS, getTrialSeeds(numTrials));
+		double initialEvaluation = getMeanScore(scores[0]);
+		double[][] parametersEvaluations = new double[runs][1];
+		for (int i = 0; i < runs; i++) {
+			parametersEvaluations[i][0] = getMeanScore(scores[i + 1]) - initialEvaluation;
+		}
 		
 		try {
 			Matrix theta = new Matrix(parametersVariations);
@@ -101,71 +126,33 @@ public class Utils {
 	}
 
 	public static float evalPolicy(AController pacManController, int trials) {
-		Random rnd=new Random(0);
-		Thread[] threads = new Thread[trials];
-		AccumulatedScore accumulatedScore = new AccumulatedScore();
-		
-		for (int i = 0; i < trials; i++) {
-			threads[i] = new Evaluator(new Game(rnd.nextLong()), pacManController.copy(), accumulatedScore);
-			threads[i].start();
-		}
-		
-		for (Thread thread : threads) {
-			try {
-				thread.join();
-			} catch (InterruptedException e) {
-				e.printStackTrace();
-			}
-		}
-		
-		return (float) accumulatedScore.getScore() / trials;
+		int[] scores = EvaluationEngine.getSharedEngine().evaluate(pacManController, STARTER_GHOSTS, getTrialSeeds(trials));
+		return (float) getMeanScore(scores);
 	}
 	
-	private static class Evaluator extends Thread {
-		
-		private static final String[] mazes = {
-			"0,0,0,0,0,978,LEFT,3,false,1292,0,40,NEUTRAL,1292,0,60,NEUTRAL,1292,0,80,NEUTRAL,1292,0,100,NEUTRAL,1111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111,1111,-1,false,false,false,false,false,false,false",
-			"1,2041,0,0,1,973,LEFT,3,false,1318,0,35,NEUTRAL,1318,0,53,NEUTRAL,1318,0,71,NEUTRAL,1318,0,89,NEUTRAL,111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111,1111,797,false,false,false,false,false,true,false",
-			"2,2589,0,0,2,1060,LEFT,3,false,1379,0,32,NEUTRAL,1379,0,48,NEUTRAL,1379,0,64,NEUTRAL,1379,0,80,NEUTRAL,1111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111,1111,2508,false,false,false,false,false,true,false",
-			"3,3925,0,0,3,989,LEFT,3,false,1308,0,29,NEUTRAL,1308,0,43,NEUTRAL,1308,0,58,NEUTRAL,1308,0,72,NEUTRAL,111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111111,1111,3904,false,false,false,false,false,true,false"
-			};
-
-		private Game game;
-		private Controller<MOVE> pacmanController;
-		private Controller<EnumMap<GHOST,MOVE>> ghostController;
-		private AccumulatedScore accumulatedScore;
-		
-		public Evaluator(Game game, Controller<MOVE> pacmanController, AccumulatedScore accumulatedScore) {
-			this.game = game;
-			this.pacmanController = pacmanController;
-			this.ghostController = new StarterGhosts();
-			this.accumulatedScore = accumulatedScore;
+	/**
+	 * get the mean of the given scores
+	 */
+	private static double getMeanScore(int[] scores) {
+		int accumulatedScore = 0;
+		for (int score : scores) {
+			accumulatedScore += score;
 		}
 		
-		@Override
-		public void run() {
-			while(!game.gameOver()) {
-				game.advanceGame(pacmanController.getMove(game, -1), ghostController.getMove(game, -1));
-			}
-			accumulatedScore.addScore(game.getScore());
-		}
+		return (double) accumulatedScore / scores.length;
 	}
-
-	private static class AccumulatedScore {
-		
-		private int accumulatedScore;
-		
-		public AccumulatedScore() {
-			accumulatedScore = 0;
-		}
-		
-		public synchronized void addScore(int score) {
-			accumulatedScore += score;
+	
+	/**
+	 * get the seeds of the evaluation games, which are the same for every evaluation
+	 */
+	private static long[] getTrialSeeds(int trials) {
+		Random rnd = new Random(0);
+		long[] seeds = new long[trials];
+		for (int i = 0; i < trials; i++) {
+			seeds[i] = rnd.nextLong();
 		}
 		
-		public int getScore() {
-			return accumulatedScore;
-		}
+		return seeds;
 	}
 
 }
@@ -2,6 +2,7 @@ package pacman.utils;
 
 import java.io.Serializable;
 import java.util.Arrays;
+import java.util.Random;
 
 public class Vector implements Serializable {
 
@@ -53,6 +54,18 @@ public class Vector implements Serializable {
 		
 		return new Vector(values);
 	}
+	
+	/**
+	 * get a random vector of dimension n containing random values between min and max drawn from rnd
+	 */
+	public static Vector getRandomVector(int n, double min, double max, Random rnd) {
+		double[] values = new double[n];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = rnd.nextDouble() * (max - min) + min;
+		}
+		
+		return new Vector(values);
+	}
 
 	/**
 	 * get the dimension
@@ -97,6 +110,21 @@ public class Vector implements Serializable {
 		return dot;
 	}
 	
+	/**
+	 * get the dot product between this vector and the values x
+	 */
+	public double dot(double[] x) {
+		if (x == null || this.values.length != x.length)
+			throw new IllegalArgumentException();
+		
+		double dot = 0;
+		for (int i = 0; i < values.length; i++) {
+			dot += values[i] * x[i];
+		}
+		
+		return dot;
+	}
+	
 	/**
 	 * add vector x to this vector
 	 */